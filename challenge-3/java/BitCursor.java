@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+/**
+ * Sequenza di bit impacchettata in un {@code byte[]} (MSB first), percorsa da un cursore.
+ * <p>
+ * Sostituisce le liste di {@code Integer} da un elemento per bit: leggere o scrivere un bit
+ * non alloca nulla e i byte sono disponibili così come sono, senza riconversioni.
+ */
+final class BitCursor {
+    private final byte[] bytes;
+    private final int limit;
+    private int position;
+
+    private BitCursor(byte[] bytes, int limit) {
+        this.bytes = bytes;
+        this.limit = limit;
+    }
+
+    /**
+     * Cursore in lettura su tutti i bit di {@code bytes}
+     */
+    static BitCursor over(byte[] bytes) {
+        return new BitCursor(bytes, bytes.length * 8);
+    }
+
+    /**
+     * Cursore in scrittura su {@code bitCount} bit azzerati
+     */
+    static BitCursor allocate(int bitCount) {
+        return new BitCursor(new byte[(bitCount + 7) / 8], bitCount);
+    }
+
+    /**
+     * Cursore sugli stessi byte, dal bit {@code fromBit} (incluso) a {@code toBit} (escluso): cursori su intervalli
+     * che non condividono byte si possono usare da thread diversi
+     */
+    BitCursor window(int fromBit, int toBit) {
+        BitCursor window = new BitCursor(bytes, toBit);
+        window.position = fromBit;
+        return window;
+    }
+
+    int position() {
+        return position;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    boolean hasNext() {
+        return position < limit;
+    }
+
+    int remaining() {
+        return limit - position;
+    }
+
+    /**
+     * Avanza di {@code n} bit senza leggerli
+     */
+    void skip(int n) {
+        position += n;
+    }
+
+    /**
+     * @return il prossimo bit (0 o 1)
+     */
+    int next() {
+        int bit = (bytes[position >>> 3] >>> (7 - (position & 7))) & 1;
+        position++;
+        return bit;
+    }
+
+    /**
+     * @return i prossimi {@code n} bit (al massimo 24), il primo nella posizione più significativa
+     */
+    int next(int n) {
+        int value = 0;
+        while (n > 0) {
+            int free = 8 - (position & 7);
+            int take = Math.min(free, n);
+            value = value << take | (bytes[position >>> 3] >>> (free - take)) & ((1 << take) - 1);
+            position += take;
+            n -= take;
+        }
+        return value;
+    }
+
+    /**
+     * Scrive {@code bit} (0 o 1) nella posizione corrente e avanza
+     */
+    void put(int bit) {
+        bytes[position >>> 3] |= (byte) (bit << (7 - (position & 7)));
+        position++;
+    }
+
+    /**
+     * Scrive gli {@code n} bit meno significativi di {@code value} (al massimo 24), il più significativo per primo
+     */
+    void put(int value, int n) {
+        while (n > 0) {
+            int free = 8 - (position & 7);
+            int take = Math.min(free, n);
+            bytes[position >>> 3] |= (byte) (((value >>> (n - take)) & ((1 << take) - 1)) << (free - take));
+            position += take;
+            n -= take;
+        }
+    }
+
+    /**
+     * @return i byte che contengono i bit da {@code fromBit} (incluso) a {@code toBit} (escluso); un ultimo
+     * byte incompleto è completato con zeri. {@code fromBit} deve essere multiplo di 8.
+     */
+    byte[] bytes(int fromBit, int toBit) {
+        return Arrays.copyOfRange(bytes, fromBit / 8, (toBit + 7) / 8);
+    }
+}
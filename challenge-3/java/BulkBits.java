@@ -0,0 +1,47 @@
+/**
+ * Lettura e scrittura in blocco di un piano di bit su campioni contigui, per gli accessor che tengono i campioni
+ * in un array.
+ * <p>
+ * L'implementazione, {@code vector/VectorBits.java}, usa il modulo incubator {@code jdk.incubator.vector} e si
+ * compila a parte: la libreria non la nomina mai e la cerca per nome solo se il modulo è caricato. Senza,
+ * {@link #vector()} restituisce {@code null} e gli accessor restano sui loro cicli scalari, con gli stessi
+ * risultati.
+ */
+interface BulkBits {
+
+    /**
+     * Il bit {@code plane} di {@code count} byte consecutivi da {@code from}, un bit per byte
+     */
+    void readBytes(byte[] a, int from, int count, int plane, BitCursor out);
+
+    /**
+     * Il bit {@code shift} di {@code count} int consecutivi da {@code from}, un bit per int
+     */
+    void readInts(int[] a, int from, int count, int shift, BitCursor out);
+
+    /**
+     * I bit {@code plane} di rosso, verde e blu di {@code count} pixel {@code 0x??RRGGBB} consecutivi
+     */
+    void readPackedRgb(int[] a, int from, int count, int plane, BitCursor out);
+
+    /**
+     * Scrive i bit di {@code in} sul bit {@code plane} di {@code count} int consecutivi da {@code from}, un bit
+     * per int
+     */
+    void writeInts(int[] a, int from, int count, int plane, BitCursor in);
+
+    /**
+     * @return l'implementazione vettoriale, oppure {@code null} se il modulo non è caricato o la classe non è
+     * stata compilata
+     */
+    static BulkBits vector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (BulkBits) Class.forName("VectorBits").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
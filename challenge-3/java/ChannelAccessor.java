@@ -0,0 +1,476 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Accesso ai singoli bit dei canali colore di un'immagine, pixel per pixel in ordine di riga.
+ * <p>
+ * I pixel sono indicizzati linearmente ({@code y * width + x}); i canali seguono la convenzione
+ * della libreria: 0 = rosso, 1 = verde, 2 = blu. Il piano di bit è 0-based (0 = LSB).
+ */
+interface ChannelAccessor {
+
+    /**
+     * Il nucleo vettoriale a cui gli accessor passano i campioni contigui, oppure {@code null} se non è
+     * disponibile: allora restano sui cicli scalari
+     */
+    BulkBits VECTOR = BulkBits.vector();
+
+    int width();
+
+    int height();
+
+    /**
+     * @return i bit di ciascun campione, cioè i piani di bit utilizzabili
+     */
+    default int sampleBits() {
+        return 8;
+    }
+
+    /**
+     * @return il bit {@code plane} del canale {@code channel} del pixel {@code pixel}
+     */
+    int bit(int pixel, int channel, int plane);
+
+    /**
+     * Imposta il bit {@code plane} del canale {@code channel} del pixel {@code pixel} a {@code bit} (0 o 1)
+     */
+    void setBit(int pixel, int channel, int plane, int bit);
+
+    /**
+     * @return il bit {@code plane} di rosso, verde e blu del pixel {@code pixel}, in quest'ordine dal più
+     * significativo ({@code r << 2 | g << 1 | b})
+     */
+    default int bits3(int pixel, int plane) {
+        return bit(pixel, 0, plane) << 2 | bit(pixel, 1, plane) << 1 | bit(pixel, 2, plane);
+    }
+
+    /**
+     * Legge i bit del flusso a partire da {@code fromBit} fino a riempire {@code out}: con {@code channel == -1}
+     * tre bit per pixel (R, G, B), altrimenti uno per pixel sul canale indicato.
+     * <p>
+     * I pixel interi passano da {@link #readPixels}; qui restano solo l'eventuale pixel iniziato a metà e quello
+     * finale incompleto.
+     */
+    default void readBits(long fromBit, int channel, int plane, BitCursor out) {
+        if (channel != -1) {
+            int px = (int) fromBit;
+            int count = out.remaining();
+            readPixels(px, count, channel, plane, out);
+            return;
+        }
+
+        int px = (int) (fromBit / 3);
+        int c = (int) (fromBit % 3);
+        if (c != 0) {
+            while (c < 3 && out.hasNext()) {
+                out.put(bit(px, c++, plane));
+            }
+            px++;
+        }
+        int count = out.remaining() / 3;
+        readPixels(px, count, -1, plane, out);
+        px += count;
+        for (c = 0; out.hasNext(); c++) {
+            out.put(bit(px, c, plane));
+        }
+    }
+
+    /**
+     * Legge tutti i bit di {@code count} pixel interi da {@code px} (tre per pixel con {@code channel == -1}).
+     * <p>
+     * I bit vanno a gruppi di otto pixel (24 o 8 bit alla volta), senza scegliere il canale bit per bit. Le
+     * implementazioni con i campioni in un array possono passarli in blocco a {@link #VECTOR}.
+     */
+    default void readPixels(int px, int count, int channel, int plane, BitCursor out) {
+        int end = px + count;
+        if (channel != -1) {
+            while (end - px >= 8) {
+                int group = 0;
+                for (int k = 0; k < 8; k++) {
+                    group = group << 1 | bit(px++, channel, plane);
+                }
+                out.put(group, 8);
+            }
+            while (px < end) {
+                out.put(bit(px++, channel, plane));
+            }
+            return;
+        }
+
+        while (end - px >= 8) {
+            int group = 0;
+            for (int k = 0; k < 8; k++) {
+                group = group << 3 | bits3(px++, plane);
+            }
+            out.put(group, 24);
+        }
+        while (px < end) {
+            out.put(bits3(px++, plane), 3);
+        }
+    }
+
+    /**
+     * Scrive i bit di {@code in} a partire dal bit {@code fromBit} del flusso (con {@code channel == -1}, l'inizio
+     * di un pixel), con la corrispondenza di {@link #readBits}. I pixel interi passano da {@link #writePixels}.
+     */
+    default void writeBits(long fromBit, int channel, int plane, BitCursor in) {
+        if (channel != -1) {
+            writePixels((int) fromBit, in.remaining(), channel, plane, in);
+            return;
+        }
+
+        int px = (int) (fromBit / 3);
+        int count = in.remaining() / 3;
+        writePixels(px, count, -1, plane, in);
+        px += count;
+        for (int c = 0; in.hasNext(); c++) {
+            int bit = in.next();
+            if (bit(px, c, plane) != bit) {
+                setBit(px, c, plane, bit);
+            }
+        }
+    }
+
+    /**
+     * Scrive i bit di {@code count} pixel interi da {@code px}: tocca solo i bit che cambiano, e confronta un
+     * pixel intero alla volta
+     */
+    default void writePixels(int px, int count, int channel, int plane, BitCursor in) {
+        int end = px + count;
+        if (channel != -1) {
+            for (; px < end; px++) {
+                int bit = in.next();
+                if (bit(px, channel, plane) != bit) {
+                    setBit(px, channel, plane, bit);
+                }
+            }
+            return;
+        }
+
+        for (; px < end; px++) {
+            int wanted = in.next(3);
+            if (bits3(px, plane) != wanted) {
+                for (int c = 0; c < 3; c++) {
+                    int bit = (wanted >>> (2 - c)) & 1;
+                    if (bit(px, c, plane) != bit) {
+                        setBit(px, c, plane, bit);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sceglie l'implementazione più diretta per il layout dell'immagine: se possibile lavora sull'array
+     * che sta dietro al raster, altrimenti ripiega su {@code getRGB}/{@code setRGB}.
+     */
+    static ChannelAccessor of(BufferedImage img) {
+        ChannelAccessor direct = direct(img);
+        return direct != null ? direct : new RgbFallback(img);
+    }
+
+    /**
+     * Accesso diretto all'array del raster per i layout RGB/RGBA più comuni: {@code int} impacchettati
+     * ({@code TYPE_INT_RGB}, {@code TYPE_INT_ARGB}) e campioni interlacciati a 8 o 16 bit
+     * ({@code TYPE_3BYTE_BGR}, {@code TYPE_4BYTE_ABGR}, PNG a 16 bit per canale).
+     * I bit sono quelli del campione nativo: con 16 bit per canale il piano 0 è il bit meno significativo
+     * dei 16.
+     *
+     * @return l'accessor, oppure {@code null} se il layout non è gestito direttamente
+     */
+    static ChannelAccessor direct(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        ColorModel cm = img.getColorModel();
+        if (raster.getParent() != null || cm.isAlphaPremultiplied() || cm.getNumColorComponents() != 3
+                || !cm.getColorSpace().isCS_sRGB()) {
+            return null;
+        }
+
+        int type = img.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sm) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            return new PackedInt(img.getWidth(), img.getHeight(), buffer.getData(), buffer.getOffset(),
+                    sm.getScanlineStride());
+        }
+
+        if (cm instanceof ComponentColorModel
+                && raster.getSampleModel() instanceof ComponentSampleModel sm
+                && (sm.getNumBands() == 3 || sm.getNumBands() == 4)
+                && Arrays.stream(sm.getBankIndices()).allMatch(bank -> bank == 0)) {
+            int[] sizes = cm.getComponentSize();
+            if (raster.getDataBuffer() instanceof DataBufferByte buffer && Arrays.stream(sizes).allMatch(n -> n == 8)) {
+                return new InterleavedByte(img.getWidth(), img.getHeight(), buffer.getData(), buffer.getOffset(), sm);
+            }
+            if (raster.getDataBuffer() instanceof DataBufferUShort buffer && Arrays.stream(sizes).allMatch(n -> n == 16)) {
+                return new InterleavedShort(img.getWidth(), img.getHeight(), buffer.getData(), buffer.getOffset(), sm);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pixel impacchettati in un {@code int} ({@code 0xAARRGGBB} o {@code 0x00RRGGBB}), letti e scritti
+     * direttamente sull'array del {@link DataBufferInt}.
+     */
+    final class PackedInt implements ChannelAccessor {
+        private final int width;
+        private final int height;
+        private final int[] data;
+        private final int offset;
+        private final int stride;
+
+        PackedInt(int width, int height, int[] data, int offset, int stride) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        private int index(int pixel) {
+            if (stride == width) {
+                return offset + pixel;
+            }
+            return offset + (pixel / width) * stride + pixel % width;
+        }
+
+        @Override
+        public int bit(int pixel, int channel, int plane) {
+            return (data[index(pixel)] >>> (16 - 8 * channel + plane)) & 1;
+        }
+
+        @Override
+        public void setBit(int pixel, int channel, int plane, int bit) {
+            int idx = index(pixel);
+            int shift = 16 - 8 * channel + plane;
+            data[idx] = (data[idx] & ~(1 << shift)) | (bit << shift);
+        }
+
+        @Override
+        public int bits3(int pixel, int plane) {
+            return packedBits3(data[index(pixel)], plane);
+        }
+
+        @Override
+        public void readPixels(int px, int count, int channel, int plane, BitCursor out) {
+            if (VECTOR == null) {
+                ChannelAccessor.super.readPixels(px, count, channel, plane, out);
+                return;
+            }
+            int end = px + count;
+            while (px < end) {
+                // Senza spazi tra le righe l'intero intervallo è contiguo
+                int run = stride == width ? end - px : Math.min(end - px, width - px % width);
+                if (channel == -1) {
+                    VECTOR.readPackedRgb(data, index(px), run, plane, out);
+                } else {
+                    VECTOR.readInts(data, index(px), run, 16 - 8 * channel + plane, out);
+                }
+                px += run;
+            }
+        }
+    }
+
+    /**
+     * I tre bit {@code plane} di un pixel {@code 0x??RRGGBB} con un solo shift e una maschera: restano ai bit
+     * 16, 8 e 0 e due shift li accostano
+     */
+    private static int packedBits3(int rgb, int plane) {
+        int lanes = (rgb >>> plane) & 0x010101;
+        return (lanes >>> 14 | lanes >>> 7 | lanes) & 7;
+    }
+
+    /**
+     * Un campione per canale, interlacciati pixel per pixel: l'indice del campione dipende dagli stride
+     * e dall'offset di ciascuna banda (R, G, B ed eventualmente A, in quest'ordine).
+     */
+    abstract class Interleaved implements ChannelAccessor {
+        private final int width;
+        private final int height;
+        private final int offset;
+        private final int pixelStride;
+        private final int scanlineStride;
+        private final int[] bandOffsets;
+
+        Interleaved(int width, int height, int offset, ComponentSampleModel sm) {
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+            this.pixelStride = sm.getPixelStride();
+            this.scanlineStride = sm.getScanlineStride();
+            this.bandOffsets = sm.getBandOffsets();
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        /**
+         * @return true se i campioni di una riga sono R, G, B contigui, senza alfa né riordino: i bit del flusso
+         * con {@code channel == -1} sono allora un bit per campione, nell'ordine dell'array
+         */
+        boolean contiguousRgb() {
+            return pixelStride == 3 && bandOffsets[0] == 0 && bandOffsets[1] == 1 && bandOffsets[2] == 2;
+        }
+
+        /**
+         * @return true se tra una riga e l'altra non ci sono campioni in più
+         */
+        boolean contiguousRows() {
+            return scanlineStride == width * pixelStride;
+        }
+
+        int index(int pixel, int channel) {
+            return offset + (pixel / width) * scanlineStride + (pixel % width) * pixelStride + bandOffsets[channel];
+        }
+
+        /**
+         * @return il campione all'indice {@code index} dell'array, senza segno
+         */
+        abstract int sample(int index);
+
+        @Override
+        public int bit(int pixel, int channel, int plane) {
+            return (sample(index(pixel, channel)) >>> plane) & 1;
+        }
+
+        @Override
+        public int bits3(int pixel, int plane) {
+            int idx = offset + (pixel / width) * scanlineStride + (pixel % width) * pixelStride;
+            return ((sample(idx + bandOffsets[0]) >>> plane) & 1) << 2
+                    | ((sample(idx + bandOffsets[1]) >>> plane) & 1) << 1
+                    | (sample(idx + bandOffsets[2]) >>> plane) & 1;
+        }
+    }
+
+    /**
+     * Campioni a 8 bit sull'array del {@link DataBufferByte}
+     */
+    final class InterleavedByte extends Interleaved {
+        private final byte[] data;
+
+        InterleavedByte(int width, int height, byte[] data, int offset, ComponentSampleModel sm) {
+            super(width, height, offset, sm);
+            this.data = data;
+        }
+
+        @Override
+        int sample(int index) {
+            return data[index] & 0xFF;
+        }
+
+        @Override
+        public void setBit(int pixel, int channel, int plane, int bit) {
+            int idx = index(pixel, channel);
+            data[idx] = (byte) ((data[idx] & ~(1 << plane)) | (bit << plane));
+        }
+
+        @Override
+        public void readPixels(int px, int count, int channel, int plane, BitCursor out) {
+            if (VECTOR == null || channel != -1 || !contiguousRgb()) {
+                super.readPixels(px, count, channel, plane, out);
+                return;
+            }
+            int end = px + count;
+            while (px < end) {
+                int run = contiguousRows() ? end - px : Math.min(end - px, width() - px % width());
+                VECTOR.readBytes(data, index(px, 0), 3 * run, plane, out);
+                px += run;
+            }
+        }
+    }
+
+    /**
+     * Campioni a 16 bit sull'array del {@link DataBufferUShort}
+     */
+    final class InterleavedShort extends Interleaved {
+        private final short[] data;
+
+        InterleavedShort(int width, int height, short[] data, int offset, ComponentSampleModel sm) {
+            super(width, height, offset, sm);
+            this.data = data;
+        }
+
+        @Override
+        public int sampleBits() {
+            return 16;
+        }
+
+        @Override
+        int sample(int index) {
+            return data[index] & 0xFFFF;
+        }
+
+        @Override
+        public void setBit(int pixel, int channel, int plane, int bit) {
+            int idx = index(pixel, channel);
+            data[idx] = (short) ((data[idx] & ~(1 << plane)) | (bit << plane));
+        }
+    }
+
+    /**
+     * Layout non supportati direttamente: passa da {@code getRGB}/{@code setRGB} senza allocare nulla per pixel.
+     */
+    final class RgbFallback implements ChannelAccessor {
+        private final BufferedImage img;
+        private final int width;
+
+        RgbFallback(BufferedImage img) {
+            this.img = img;
+            this.width = img.getWidth();
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return img.getHeight();
+        }
+
+        @Override
+        public int bit(int pixel, int channel, int plane) {
+            return (img.getRGB(pixel % width, pixel / width) >>> (16 - 8 * channel + plane)) & 1;
+        }
+
+        @Override
+        public void setBit(int pixel, int channel, int plane, int bit) {
+            int x = pixel % width;
+            int y = pixel / width;
+            int shift = 16 - 8 * channel + plane;
+            img.setRGB(x, y, (img.getRGB(x, y) & ~(1 << shift)) | (bit << shift));
+        }
+
+        @Override
+        public int bits3(int pixel, int plane) {
+            return packedBits3(img.getRGB(pixel % width, pixel / width), plane);
+        }
+    }
+}
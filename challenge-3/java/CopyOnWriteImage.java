@@ -0,0 +1,181 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Vista modificabile di un'immagine che non ne tocca i pixel: la prima scrittura su una riga ne fa una
+ * copia, e da lì in poi la riga viene letta e scritta sulla copia.
+ * <p>
+ * Il payload occupa di solito solo le prime righe, quindi invece di duplicare l'intera immagine
+ * si copiano soltanto quelle. Le righe copiate conservano i campioni nativi (RGB o RGBA, a 8 o 16 bit),
+ * per cui l'immagine deve avere un layout gestito da {@link ChannelAccessor#direct}.
+ */
+final class CopyOnWriteImage implements ChannelAccessor {
+    private final BufferedImage source;
+    private final ChannelAccessor base;
+    private final int width;
+    private final int height;
+    private final int bands;
+    private final int depth;
+    private final int[][] rows;
+    private boolean modified;
+
+    CopyOnWriteImage(BufferedImage source) {
+        this.source = source;
+        this.base = ChannelAccessor.direct(source);
+        if (base == null) {
+            throw new IllegalArgumentException("Unsupported image layout");
+        }
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.bands = source.getRaster().getNumBands();
+        this.depth = source.getColorModel().getComponentSize(0);
+        this.rows = new int[height][];
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public int sampleBits() {
+        return depth;
+    }
+
+    @Override
+    public int bit(int pixel, int channel, int plane) {
+        int[] row = rows[pixel / width];
+        if (row == null) {
+            return base.bit(pixel, channel, plane);
+        }
+        return (row[(pixel % width) * bands + channel] >>> plane) & 1;
+    }
+
+    @Override
+    public int bits3(int pixel, int plane) {
+        int[] row = rows[pixel / width];
+        if (row == null) {
+            return base.bits3(pixel, plane);
+        }
+        int idx = (pixel % width) * bands;
+        return ((row[idx] >>> plane) & 1) << 2 | ((row[idx + 1] >>> plane) & 1) << 1 | (row[idx + 2] >>> plane) & 1;
+    }
+
+    @Override
+    public void setBit(int pixel, int channel, int plane, int bit) {
+        int[] row = row(pixel / width);
+        int idx = (pixel % width) * bands + channel;
+        row[idx] = (row[idx] & ~(1 << plane)) | (bit << plane);
+    }
+
+    @Override
+    public void readPixels(int px, int count, int channel, int plane, BitCursor out) {
+        int end = px + count;
+        while (px < end) {
+            int y = px / width;
+            int run = Math.min(end, (y + 1) * width) - px;
+            int[] row = rows[y];
+            if (row == null) {
+                base.readPixels(px, run, channel, plane, out);
+            } else if (VECTOR != null && channel == -1 && bands == 3) {
+                VECTOR.readInts(row, (px % width) * 3, 3 * run, plane, out);
+            } else {
+                ChannelAccessor.super.readPixels(px, run, channel, plane, out);
+            }
+            px += run;
+        }
+    }
+
+    /**
+     * Con il modulo vettoriale e tre campioni per pixel, una riga già copiata si scrive a vettori interi; una riga
+     * ancora condivisa viene confrontata pixel per pixel e copiata solo al primo che cambia.
+     */
+    @Override
+    public void writePixels(int px, int count, int channel, int plane, BitCursor in) {
+        if (VECTOR == null || channel != -1 || bands != 3) {
+            ChannelAccessor.super.writePixels(px, count, channel, plane, in);
+            return;
+        }
+        int end = px + count;
+        while (px < end) {
+            int y = px / width;
+            int rowEnd = Math.min(end, (y + 1) * width);
+            for (; rows[y] == null && px < rowEnd; px++) {
+                int wanted = in.next(3);
+                if (base.bits3(px, plane) != wanted) {
+                    int[] row = row(y);
+                    int idx = (px % width) * 3;
+                    for (int c = 0; c < 3; c++) {
+                        row[idx + c] = (row[idx + c] & ~(1 << plane)) | (((wanted >>> (2 - c)) & 1) << plane);
+                    }
+                }
+            }
+            if (px < rowEnd) {
+                VECTOR.writeInts(rows[y], (px % width) * 3, 3 * (rowEnd - px), plane, in);
+                px = rowEnd;
+            }
+        }
+    }
+
+    /**
+     * @return la riga {@code y} modificabile, copiata dall'originale al primo accesso
+     */
+    private int[] row(int y) {
+        int[] row = rows[y];
+        if (row == null) {
+            row = source.getRaster().getPixels(0, y, width, 1, (int[]) null);
+            rows[y] = row;
+            modified = true;
+        }
+        return row;
+    }
+
+    /**
+     * @return true se almeno una riga è stata scritta
+     */
+    boolean modified() {
+        return modified;
+    }
+
+    /**
+     * Righe da codificare in PNG: quelle copiate con le modifiche, le altre direttamente dall'originale
+     */
+    PngEncoder.RowSource rows() {
+        PngEncoder.RowSource original = PngEncoder.rows(source);
+        return new PngEncoder.RowSource() {
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public int height() {
+                return height;
+            }
+
+            @Override
+            public int bitDepth() {
+                return original.bitDepth();
+            }
+
+            @Override
+            public int colorType() {
+                return original.colorType();
+            }
+
+            @Override
+            public void row(int y, byte[] out) {
+                int[] row = rows[y];
+                if (row != null) {
+                    PngEncoder.sampleBytes(row, depth, out);
+                } else {
+                    original.row(y, out);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,244 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indice strutturale dell'oggetto JSON principale: per ogni chiave, dove iniziano e finiscono chiave e valore nei
+ * byte UTF-8. Costruirlo richiede un solo passaggio che non decodifica nulla: stringhe, numeri e oggetti o array
+ * annidati vengono solo scavalcati. Poi {@link #get} passa a {@link JSONParser} i soli valori richiesti.
+ * <p>
+ * I valori scavalcati non vengono validati: un errore di sintassi dentro un valore non richiesto passa
+ * inosservato (il checksum del payload protegge comunque dai dati corrotti).
+ */
+final class JSONIndex {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long QUOTES = 0x2222222222222222L;
+    private static final long BACKSLASHES = 0x5C5C5C5C5C5C5C5CL;
+
+    private final byte[] json;
+    /**
+     * Quattro interi per chiave: inizio e fine della chiave (senza virgolette), inizio e fine del valore
+     */
+    private int[] spans = new int[64];
+    private int count;
+    private int i;
+    private final int end;
+
+    private JSONIndex(byte[] json, int offset, int length) {
+        this.json = json;
+        this.i = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Indicizza l'oggetto JSON tra {@code offset} e {@code offset + length}
+     *
+     * @throws IllegalStateException se la struttura dell'oggetto principale non è valida
+     */
+    static JSONIndex of(byte[] json, int offset, int length) {
+        JSONIndex index = new JSONIndex(json, offset, length);
+        index.indexObject();
+        return index;
+    }
+
+    /**
+     * @return numero di chiavi dell'oggetto principale
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Costruisce i valori delle sole chiavi richieste; quelle assenti non compaiono nella mappa. Se una chiave è
+     * ripetuta vale l'ultima occorrenza, come per {@link JSONParser#parseMainObject()}.
+     */
+    Map<String, Object> get(Collection<String> keys) {
+        Map<String, Object> result = new HashMap<>();
+        for (String key : keys) {
+            int entry = find(key);
+            if (entry >= 0) {
+                int from = spans[4 * entry + 2];
+                int to = spans[4 * entry + 3];
+                result.put(key, new JSONParser(json, from, to - from).parseMainValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return l'ultima voce con chiave {@code key}, oppure -1
+     */
+    private int find(String key) {
+        byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+        for (int entry = count - 1; entry >= 0; entry--) {
+            int from = spans[4 * entry];
+            int to = spans[4 * entry + 1];
+            if (Arrays.equals(json, from, to, wanted, 0, wanted.length)) {
+                return entry;
+            }
+            // Una chiave con escape coincide solo dopo la decodifica
+            if (indexOf((byte) '\\', from, to) >= 0
+                    && key.equals(new JSONParser(json, from - 1, to - from + 2).parseMainValue())) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void indexObject() {
+        skipWhitespace();
+        skipNextMustBe('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            i++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                skipNextMustBe('"');
+                int keyStart = i;
+                skipString();
+                int keyEnd = i - 1;
+
+                skipWhitespace();
+                skipNextMustBe(':');
+                skipWhitespace();
+
+                int valueStart = i;
+                skipValue();
+                add(keyStart, keyEnd, valueStart, i);
+
+                skipWhitespace();
+                byte next = peek();
+                i++;
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw new IllegalStateException("Expected one of ',', '}', but '" + (char) next + "' found");
+                }
+            }
+        }
+        skipWhitespace();
+        if (i < end) {
+            throw new IllegalStateException("Expected end-of-input");
+        }
+    }
+
+    private void add(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        if (4 * count + 4 > spans.length) {
+            spans = Arrays.copyOf(spans, 2 * spans.length);
+        }
+        spans[4 * count] = keyStart;
+        spans[4 * count + 1] = keyEnd;
+        spans[4 * count + 2] = valueStart;
+        spans[4 * count + 3] = valueEnd;
+        count++;
+    }
+
+    /**
+     * Scavalca un valore qualunque: gli oggetti e gli array annidati contando le parentesi, saltando le stringhe
+     */
+    private void skipValue() {
+        byte first = peek();
+        if (first == '"') {
+            i++;
+            skipString();
+        } else if (first == '{' || first == '[') {
+            int depth = 1;
+            i++;
+            while (depth > 0) {
+                byte next = peek();
+                i++;
+                switch (next) {
+                    case '"' -> skipString();
+                    case '{', '[' -> depth++;
+                    case '}', ']' -> depth--;
+                    default -> {
+                    }
+                }
+            }
+        } else {
+            // Numero, booleano o null: fino al prossimo delimitatore
+            while (i < end && json[i] != ',' && json[i] != '}' && json[i] != ']'
+                    && !(json[i] >= 0 && Character.isWhitespace(json[i]))) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Dalla posizione dopo le virgolette di apertura a quella dopo le virgolette di chiusura. Le stringhe sono la
+     * maggior parte dei byte: si cercano virgolette e backslash otto byte alla volta.
+     */
+    private void skipString() {
+        int k = i;
+        while (k + Long.BYTES <= end) {
+            long word = (long) LONGS.get(json, k);
+            long special = matches(word, QUOTES) | matches(word, BACKSLASHES);
+            if (special == 0) {
+                k += Long.BYTES;
+                continue;
+            }
+            k += Long.numberOfTrailingZeros(special) >>> 3;
+            if (json[k++] == '"') {
+                i = k;
+                return;
+            }
+            // Salta il byte dopo l'escape
+            k++;
+        }
+        while (k < end) {
+            byte next = json[k++];
+            if (next == '"') {
+                i = k;
+                return;
+            } else if (next == '\\') {
+                k++;
+            }
+        }
+        throw new IllegalStateException("Unexpected end-of-input");
+    }
+
+    /**
+     * Il bit alto di ogni byte di {@code word} uguale al corrispondente di {@code pattern}; sopra il primo byte
+     * uguale possono esserci falsi positivi, per cui conta solo il più basso
+     */
+    private static long matches(long word, long pattern) {
+        long x = word ^ pattern;
+        return (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int k = from; k < to; k++) {
+            if (json[k] == b) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private void skipWhitespace() {
+        while (i < end && json[i] >= 0 && Character.isWhitespace(json[i])) {
+            i++;
+        }
+    }
+
+    private byte peek() {
+        if (i >= end) {
+            throw new IllegalStateException("Unexpected end-of-input");
+        }
+        return json[i];
+    }
+
+    private void skipNextMustBe(char expected) {
+        byte next = peek();
+        if (next != expected) {
+            throw new IllegalStateException("Expected '" + expected + "', but '" + (char) next + "' found");
+        }
+        i++;
+    }
+}
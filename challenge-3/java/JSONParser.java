@@ -1,14 +1,57 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Parser JSON che lavora direttamente sui byte UTF-8 di una porzione di array: le stringhe vengono decodificate
+ * solo quando se ne costruisce il valore.
+ */
 class JSONParser {
-    private final String json;
+    /**
+     * Oltre questa dimensione il buffer delle stringhe con escape non viene tenuto
+     */
+    private static final int MAX_SCRATCH = 1 << 16;
+    /**
+     * Cifre significative che un {@code long} accumula di sicuro senza overflow
+     */
+    private static final int MAX_EXACT_DIGITS = 18;
+    /**
+     * Le potenze di dieci rappresentabili esattamente come double
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] json;
+    private final int end;
     private int i;
+    /**
+     * Char di una stringa con escape, riusato tra una stringa e l'altra
+     */
+    private char[] scratch = new char[64];
 
     JSONParser(String json) {
+        this(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    JSONParser(byte[] json) {
+        this(json, 0, json.length);
+    }
+
+    /**
+     * @param json   i byte UTF-8 da leggere
+     * @param offset primo byte del documento
+     * @param length numero di byte del documento
+     */
+    JSONParser(byte[] json, int offset, int length) {
         this.json = json;
+        this.i = offset;
+        this.end = offset + length;
     }
 
     Map<String, Object> parseMainObject() {
@@ -19,23 +62,45 @@ class JSONParser {
         return result;
     }
 
+    /**
+     * Come {@link #parseMainObject()}, per un valore JSON qualunque
+     */
+    Object parseMainValue() {
+        skipWhitespace();
+        Object result = parseValue();
+        skipWhitespace();
+        mustBeAtEnd();
+        return result;
+    }
+
     private void skipWhitespace() {
-        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+        while (i < end && json[i] >= 0 && Character.isWhitespace(json[i])) {
             i++;
         }
     }
 
+    /**
+     * @return il byte corrente, senza avanzare
+     */
+    private byte peek() {
+        if (i >= end) {
+            throw new IllegalStateException("Unexpected end-of-input");
+        }
+        return json[i];
+    }
+
     private void skipNextMustBe(char expected) {
-        char next = json.charAt(i);
+        byte next = peek();
         if (next != expected) {
-            throw new IllegalStateException("Expected '" + expected + "', but '" + next + "' found");
+            throw new IllegalStateException("Expected '" + expected + "', but '" + describe(next) + "' found");
         }
         i++;
     }
 
     private void mustBeAtEnd() {
-        if (i < json.length()) {
-            throw new IllegalStateException("Expected end-of-input, but '" + json.substring(i) + "' found");
+        if (i < end) {
+            throw new IllegalStateException("Expected end-of-input, but '"
+                    + new String(json, i, end - i, StandardCharsets.UTF_8) + "' found");
         }
     }
 
@@ -44,9 +109,13 @@ class JSONParser {
         skipWhitespace();
 
         Map<String, Object> object = new HashMap<>();
+        if (peek() == '}') {
+            i++;
+            return object;
+        }
 
         loop:
-        while (i < json.length()) {
+        while (i < end) {
             skipWhitespace();
             String key = parseString();
 
@@ -58,7 +127,7 @@ class JSONParser {
             object.put(key, value);
 
             skipWhitespace();
-            char next = json.charAt(i);
+            byte next = peek();
             switch (next) {
                 case ',':
                     i++;
@@ -66,7 +135,7 @@ class JSONParser {
                 case '}':
                     break loop;
                 default:
-                    throw new IllegalStateException("Expected one of ',', '}', but '" + next + "' found");
+                    throw new IllegalStateException("Expected one of ',', '}', but '" + describe(next) + "' found");
             }
         }
 
@@ -79,16 +148,20 @@ class JSONParser {
         skipWhitespace();
 
         List<Object> array = new ArrayList<>();
+        if (peek() == ']') {
+            i++;
+            return array;
+        }
 
         loop:
-        while (i < json.length()) {
+        while (i < end) {
             skipWhitespace();
 
             Object value = parseValue();
-            array.add( value);
+            array.add(value);
 
             skipWhitespace();
-            char next = json.charAt(i);
+            byte next = peek();
             switch (next) {
                 case ',':
                     i++;
@@ -96,7 +169,7 @@ class JSONParser {
                 case ']':
                     break loop;
                 default:
-                    throw new IllegalStateException("Expected one of ',', ']', but '" + next + "' found");
+                    throw new IllegalStateException("Expected one of ',', ']', but '" + describe(next) + "' found");
             }
         }
 
@@ -106,75 +179,321 @@ class JSONParser {
     }
 
     private Object parseValue() {
-        char next = json.charAt(i);
+        byte next = peek();
         if (next == '{') {
             return parseObject();
         } else if (next == '[') {
             return parseArray();
         } else if (next == '"') {
             return parseString();
-        } else if (Character.isDigit(next)) {
+        } else if (next == '-' || isDigit(next)) {
             return parseNumber();
         } else if (next == 't' || next == 'f') {
             return parseBoolean();
+        } else if (next == 'n') {
+            return parseNull();
         } else {
-            throw new IllegalStateException("Expected one of '\"', 'f', 't', or a digit, but '" + next + "' found");
+            throw new IllegalStateException("Expected one of '\"', 'f', 't', 'n', '-', or a digit, but '" + describe(next) + "' found");
         }
     }
 
+    /**
+     * Le stringhe senza escape, i più, si decodificano in un colpo solo dai byte tra le virgolette; le altre passano
+     * da {@link #decodeString}
+     */
     private String parseString() {
         skipNextMustBe('"');
 
-        StringBuilder sb = new StringBuilder();
-        while (i < json.length()) {
-            char next = json.charAt(i);
-            if (next == '\\') {
+        int start = i;
+        while (i < end) {
+            byte next = json[i];
+            if (next == '"') {
+                String s = new String(json, start, i - start, StandardCharsets.UTF_8);
+                i++;
+                return s;
+            } else if (next == '\\') {
+                return decodeString(start);
+            }
+            i++;
+        }
+
+        throw new IllegalStateException("Unexpected end-of-input");
+    }
+
+    /**
+     * Decodifica in un solo passaggio UTF-8 ed escape (compresi <code>&#92;uXXXX</code>) della stringa iniziata a {@code start},
+     * fino alle virgolette di chiusura. Le sequenze UTF-8 non valide diventano U+FFFD, come in {@code new String}.
+     */
+    private String decodeString(int start) {
+        // Ogni byte dà al massimo un char: il prefisso senza escape ci sta
+        char[] chars = scratch.length >= i - start + 16 ? scratch : new char[2 * (i - start) + 16];
+        int n = 0;
+        i = start;
+        while (true) {
+            byte next = peek();
+            if (n + 2 > chars.length) {
+                chars = Arrays.copyOf(chars, 2 * chars.length);
+            }
+            if (next == '"') {
                 i++;
-                String escapeSequence = "\\" + json.charAt(i);
-                sb.append(escapeSequence.translateEscapes());
-            } else if (next == '"') {
                 break;
+            } else if (next == '\\') {
+                i++;
+                byte escape = peek();
+                i++;
+                chars[n++] = switch (escape) {
+                    case '"' -> '"';
+                    case '\\' -> '\\';
+                    case '/' -> '/';
+                    case 'b' -> '\b';
+                    case 'f' -> '\f';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case 't' -> '\t';
+                    case 'u' -> parseHex4();
+                    default -> throw new IllegalStateException("Invalid escape '\\" + describe(escape) + "'");
+                };
+            } else if (next >= 0) {
+                chars[n++] = (char) next;
+                i++;
             } else {
-                sb.append(next);
+                n = decodeUtf8(chars, n);
             }
+        }
 
+        if (chars.length <= MAX_SCRATCH) {
+            scratch = chars;
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Decodifica la sequenza UTF-8 multibyte che inizia in {@code i}, scrivendo uno o due char da {@code n}. Una
+     * sequenza non valida diventa un solo U+FFFD per il suo prefisso più lungo ben formato, come fa il JDK.
+     *
+     * @return la nuova lunghezza di {@code chars}
+     */
+    private int decodeUtf8(char[] chars, int n) {
+        int lead = json[i] & 0xFF;
+        int count;
+        int cp;
+        // Con alcuni primi byte il secondo ha meno valori validi: niente forme overlong né oltre U+10FFFF
+        int low = 0x80;
+        int high = 0xBF;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            count = 1;
+            cp = lead & 0x1F;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            count = 2;
+            cp = lead & 0x0F;
+            if (lead == 0xE0) {
+                low = 0xA0;
+            }
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            count = 3;
+            cp = lead & 0x07;
+            if (lead == 0xF0) {
+                low = 0x90;
+            } else if (lead == 0xF4) {
+                high = 0x8F;
+            }
+        } else {
             i++;
+            chars[n++] = '\uFFFD';
+            return n;
         }
 
-        skipNextMustBe('"');
-        return sb.toString();
+        int k = 1;
+        for (; k <= count && i + k < end; k++) {
+            int b = json[i + k] & 0xFF;
+            if (b < low || b > high) {
+                break;
+            }
+            cp = cp << 6 | b & 0x3F;
+            low = 0x80;
+            high = 0xBF;
+        }
+        if (k <= count) {
+            i += k;
+            chars[n++] = '\uFFFD';
+            return n;
+        }
+
+        i += count + 1;
+        if (Character.isSurrogate((char) cp) && count == 2) {
+            // Un surrogato codificato è una sola sequenza malformata di tre byte
+            chars[n++] = '\uFFFD';
+        } else if (cp < 0x10000) {
+            chars[n++] = (char) cp;
+        } else {
+            chars[n++] = Character.highSurrogate(cp);
+            chars[n++] = Character.lowSurrogate(cp);
+        }
+        return n;
     }
 
+    /**
+     * Le quattro cifre esadecimali di un escape <code>&#92;uXXXX</code>; i surrogati restano char separati e si
+     * ricompongono da sé nella stringa
+     */
+    private char parseHex4() {
+        if (end - i < 4) {
+            throw new IllegalStateException("Unexpected end-of-input");
+        }
+        int value = 0;
+        for (int k = 0; k < 4; k++) {
+            int digit = Character.digit(json[i + k], 16);
+            if (digit < 0) {
+                throw new IllegalStateException("Expected a hex digit, but '" + describe(json[i + k]) + "' found");
+            }
+            value = value << 4 | digit;
+        }
+        i += 4;
+        return (char) value;
+    }
+
+    /**
+     * Numero secondo la grammatica di RFC 8259. Gli interi si accumulano direttamente in un {@code long} (oltre il
+     * suo intervallo diventano {@link BigInteger}); frazioni ed esponenti danno un {@code double}, calcolato
+     * esattamente dalle cifre quando possibile e altrimenti con {@link Double#parseDouble}.
+     */
     private Number parseNumber() {
-        StringBuilder sb = new StringBuilder();
-        boolean afterDot = false;
-        while (i < json.length()) {
-            char next = json.charAt(i);
-            if (Character.isDigit(next)) {
-                sb.append(next);
-            } else if (next == '.') {
-                if (afterDot) {
-                    throw new IllegalStateException("Unexpected '.' found. Bad number literal");
+        int start = i;
+        boolean negative = json[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        int intStart = i;
+        if (peekDigit() == '0') {
+            i++;
+            if (i < end && isDigit(json[i])) {
+                throw new IllegalStateException("Unexpected leading '0' found. Bad number literal");
+            }
+        } else {
+            skipDigits();
+        }
+        int intEnd = i;
+
+        int fracStart = i;
+        if (i < end && json[i] == '.') {
+            i++;
+            fracStart = i;
+            peekDigit();
+            skipDigits();
+        }
+        int fracEnd = i;
+
+        boolean hasExponent = i < end && (json[i] == 'e' || json[i] == 'E');
+        int exponent = 0;
+        if (hasExponent) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (json[i] == '+' || json[i] == '-')) {
+                negativeExponent = json[i] == '-';
+                i++;
+            }
+            peekDigit();
+            while (i < end && isDigit(json[i])) {
+                // Oltre, ogni double è zero o infinito: il valore esatto non conta più
+                if (exponent < 100_000) {
+                    exponent = exponent * 10 + json[i] - '0';
                 }
+                i++;
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
 
-                afterDot = true;
-                sb.append('.');
-            } else {
-                break;
+        if (fracEnd == intEnd && !hasExponent) {
+            return parseInteger(start, intStart, intEnd, negative);
+        }
+        return parseDouble(start, intStart, intEnd, fracStart, fracEnd, exponent, negative);
+    }
+
+    /**
+     * Accumula le cifre in negativo, come {@link Long#parseLong}, così che anche {@link Long#MIN_VALUE} ci stia
+     */
+    private Number parseInteger(int start, int from, int to, boolean negative) {
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long value = 0;
+        for (int k = from; k < to; k++) {
+            int digit = json[k] - '0';
+            if (value < multiplyMin || value * 10 < limit + digit) {
+                return new BigInteger(new String(json, start, to - start, StandardCharsets.ISO_8859_1));
             }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Se le cifre significative stanno in 2^53 e la potenza di dieci è al massimo 10^22, entrambe sono double esatti
+     * e una sola moltiplicazione o divisione dà il risultato arrotondato correttamente (Clinger); negli altri casi
+     * decide {@link Double#parseDouble}
+     */
+    private Double parseDouble(
+            int start,
+            int intStart,
+            int intEnd,
+            int fracStart,
+            int fracEnd,
+            int exponent,
+            boolean negative
+    ) {
+        long significand = 0;
+        int digits = 0;
+        for (int k = intStart; k < fracEnd && digits <= MAX_EXACT_DIGITS; k++) {
+            if (k == intEnd) {
+                // Salta il punto
+                k = fracStart - 1;
+                continue;
+            }
+            significand = significand * 10 + json[k] - '0';
+            if (significand != 0) {
+                digits++;
+            }
+        }
+        long power = (long) exponent - (fracEnd - fracStart);
 
+        if (digits <= MAX_EXACT_DIGITS && significand <= 1L << 53 && Math.abs(power) < POWERS_OF_TEN.length) {
+            double value = significand;
+            value = power < 0 ? value / POWERS_OF_TEN[(int) -power] : value * POWERS_OF_TEN[(int) power];
+            return negative ? -value : value;
+        }
+        // Solo cifre ASCII, segni, punti ed esponenti: in ISO-8859-1 ogni byte è lo stesso char
+        return Double.parseDouble(new String(json, start, i - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void skipDigits() {
+        while (i < end && isDigit(json[i])) {
             i++;
         }
+    }
 
-        if (afterDot) {
-            return Double.parseDouble(sb.toString());
-        } else {
-            return Long.parseLong(sb.toString());
+    /**
+     * @return il byte corrente, che deve essere una cifra
+     */
+    private byte peekDigit() {
+        byte next = peek();
+        if (!isDigit(next)) {
+            throw new IllegalStateException("Expected a digit, but '" + describe(next) + "' found. Bad number literal");
         }
+        return next;
+    }
+
+    private Object parseNull() {
+        skipNextMustBe('n');
+        skipNextMustBe('u');
+        skipNextMustBe('l');
+        skipNextMustBe('l');
+        return null;
     }
 
     private Boolean parseBoolean() {
-        char next = json.charAt(i);
+        byte next = peek();
         switch (next) {
             case 'f' -> {
                 i++;
@@ -191,8 +510,19 @@ class JSONParser {
                 skipNextMustBe('e');
                 return true;
             }
-            default -> throw new IllegalStateException("Expected one of 'true' or 'false', but '" + next + "' found");
+            default -> throw new IllegalStateException("Expected one of 'true' or 'false', but '" + describe(next) + "' found");
         }
     }
 
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Il byte come carattere se è ASCII, altrimenti in esadecimale
+     */
+    private static String describe(byte b) {
+        return b >= 0 ? String.valueOf((char) b) : String.format("0x%02X", b & 0xFF);
+    }
+
 }
@@ -0,0 +1,229 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializzatore JSON che scrive UTF-8 direttamente in un buffer di byte che cresce e si riusa, senza
+ * {@code String} intermedie né espressioni regolari. Scrive ciò che {@link JSONParser} sa leggere: oggetti
+ * con chiavi stringa (i valori null vengono saltati), liste (dove null resta null), stringhe, numeri e booleani.
+ */
+final class JSONWriter {
+    private static final ThreadLocal<JSONWriter> LOCAL = ThreadLocal.withInitial(() -> new JSONWriter(1024));
+    /**
+     * Oltre questa dimensione il buffer del thread non viene tenuto: un payload enorme non resta in memoria
+     */
+    private static final int MAX_RETAINED = 1 << 20;
+
+    /**
+     * Per ogni carattere ASCII: 0 se va scritto così com'è, altrimenti il carattere da scrivere dopo il backslash
+     * ('u' per gli altri caratteri di controllo, scritti come <code>&#92;u00XX</code>)
+     */
+    private static final byte[] ESCAPES = new byte[128];
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+    }
+
+    private byte[] buf;
+    private int length;
+
+    JSONWriter(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    /**
+     * @return il writer del thread corrente, vuoto: il buffer resta allocato tra una chiamata e l'altra
+     */
+    static JSONWriter local() {
+        JSONWriter writer = LOCAL.get();
+        if (writer.buf.length > MAX_RETAINED) {
+            writer.buf = new byte[1024];
+        }
+        writer.reset(0);
+        return writer;
+    }
+
+    /**
+     * Svuota il writer lasciando {@code reserved} byte liberi all'inizio del buffer (per esempio per un header)
+     */
+    void reset(int reserved) {
+        length = 0;
+        ensure(reserved);
+        length = reserved;
+    }
+
+    /**
+     * @return il buffer, valido fino a {@link #length()} e solo fino alla prossima scrittura
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, length, StandardCharsets.UTF_8);
+    }
+
+    JSONWriter writeObject(Map<?, ?> map) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            // Skip null values
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString((String) entry.getKey());
+            writeByte(':');
+            writeValue(value);
+        }
+        writeByte('}');
+        return this;
+    }
+
+    private void writeValue(Object value) {
+        switch (value) {
+            case null -> writeAscii("null");
+            case Map<?, ?> m -> writeObject(m);
+            case List<?> l -> {
+                writeByte('[');
+                for (int i = 0; i < l.size(); i++) {
+                    if (i > 0) {
+                        writeByte(',');
+                    }
+                    writeValue(l.get(i));
+                }
+                writeByte(']');
+            }
+            case String s -> writeString(s);
+            case Long n -> writeLong(n);
+            case Integer n -> writeLong(n);
+            case Number n -> writeAscii(n.toString());
+            case Boolean b -> writeAscii(b ? "true" : "false");
+            default -> throw new IllegalArgumentException(value.toString());
+        }
+    }
+
+    /**
+     * Stringa tra virgolette: ASCII senza escape byte per byte, il resto in UTF-8; i surrogati spaiati
+     * diventano '?', come in {@code String.getBytes}
+     */
+    void writeString(String s) {
+        int n = s.length();
+        // Tre byte per char bastano per ogni sequenza UTF-8 (una coppia di surrogati è due char, quattro byte)
+        ensure(length + 3L * n + 2);
+        buf[length++] = '"';
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                byte escape = ESCAPES[c];
+                if (escape == 0) {
+                    buf[length++] = (byte) c;
+                } else if (escape != 'u') {
+                    buf[length++] = '\\';
+                    buf[length++] = escape;
+                } else {
+                    // Sei byte per questo char, poi tre per ciascuno dei restanti e per le virgolette di chiusura
+                    ensure(length + 6 + 3L * (n - i - 1) + 1);
+                    buf[length++] = '\\';
+                    buf[length++] = 'u';
+                    buf[length++] = '0';
+                    buf[length++] = '0';
+                    buf[length++] = HEX[c >>> 4];
+                    buf[length++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x800) {
+                buf[length++] = (byte) (0xC0 | c >>> 6);
+                buf[length++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[length++] = (byte) (0xF0 | cp >>> 18);
+                    buf[length++] = (byte) (0x80 | cp >>> 12 & 0x3F);
+                    buf[length++] = (byte) (0x80 | cp >>> 6 & 0x3F);
+                    buf[length++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    buf[length++] = '?';
+                }
+            } else {
+                buf[length++] = (byte) (0xE0 | c >>> 12);
+                buf[length++] = (byte) (0x80 | c >>> 6 & 0x3F);
+                buf[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        buf[length++] = '"';
+    }
+
+    /**
+     * Cifre decimali scritte direttamente nel buffer, da destra a sinistra
+     */
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(length + 20);
+        if (value < 0) {
+            buf[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int pos = length + digits - 1; pos >= length; pos--) {
+            buf[pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Byte già codificati, scritti così come sono
+     */
+    void writeRaw(byte[] bytes) {
+        ensure(length + bytes.length);
+        System.arraycopy(bytes, 0, buf, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeAscii(String s) {
+        ensure(length + s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(char c) {
+        ensure(length + 1);
+        buf[length++] = (byte) c;
+    }
+
+    private void ensure(long capacity) {
+        if (capacity > buf.length) {
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new OutOfMemoryError("JSON too large");
+            }
+            buf = Arrays.copyOf(buf, (int) Math.max(capacity, Math.min(2L * buf.length, Integer.MAX_VALUE - 8)));
+        }
+    }
+}
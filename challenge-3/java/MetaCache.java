@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache LRU limitata in byte per ciò che si ricava da un file: metadati estratti, esiti di verify, immagini
+ * decodificate.
+ * <p>
+ * Le chiavi comprendono data di modifica e dimensione del file, per cui un file cambiato da fuori non
+ * restituisce più i valori vecchi; le scritture fatte dalla libreria invalidano comunque il percorso con
+ * {@link #invalidate}, perché la data di modifica può non cambiare tra due scritture ravvicinate.
+ * Il peso di ciascun valore è una stima dei byte che occupa, fornita da chi lo inserisce.
+ */
+final class MetaCache {
+
+    /**
+     * Un valore ricavato dal file {@code path} com'era alla data {@code modified} con {@code size} byte;
+     * {@code detail} distingue cosa se ne è ricavato (e con quali parametri)
+     */
+    record Key(Path path, long modified, long size, Object detail) {
+    }
+
+    private record Entry(Object value, long weight) {
+    }
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    MetaCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return la chiave per il file {@code path} nel suo stato attuale
+     */
+    static Key key(Path path, Object detail) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Key(path.toAbsolutePath().normalize(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attributes.size(), detail);
+    }
+
+    /**
+     * @return il valore, oppure null se non è in cache
+     */
+    synchronized Object get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value();
+    }
+
+    /**
+     * Inserisce {@code value}, scartando le voci usate meno di recente finché il totale non rientra nel limite.
+     * Un valore più pesante dell'intera cache non viene tenuto.
+     */
+    synchronized void put(Key key, Object value, long weight) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.weight();
+        }
+        if (weight > maxBytes) {
+            return;
+        }
+        entries.put(key, new Entry(value, weight));
+        bytes += weight;
+        trim();
+    }
+
+    /**
+     * Scarta tutto ciò che riguarda il file {@code path}, in qualunque versione
+     */
+    synchronized void invalidate(Path path) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Path normalized = path.toAbsolutePath().normalize();
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().path().equals(normalized)) {
+                bytes -= entry.getValue().weight();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized void maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    synchronized Steganography.CacheStats stats() {
+        return new Steganography.CacheStats(hits, misses, evictions, entries.size(), bytes, maxBytes);
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().weight();
+            it.remove();
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,703 @@
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder PNG che decomprime e "de-filtra" gli IDAT una riga alla volta, solo quando servono.
+ * <p>
+ * Nato per extract e verify, che hanno bisogno soltanto delle prime righe dell'immagine, decodifica anche
+ * immagini intere ({@link #readImage()}) al posto di {@code ImageIO}.
+ * Gestisce solo i formati per cui produce esattamente gli stessi valori di {@code ImageIO.read} seguito da
+ * {@code openImage}: immagini non interlacciate RGB o RGBA a 8 o 16 bit, in scala di grigi o con palette a 8 bit,
+ * senza chunk tRNS né profilo ICC. Per tutto il resto {@link #open(Path)} restituisce {@code null}.
+ * <p>
+ * Il PNG viene letto da un {@link ByteBuffer}: i file grandi sono mappati in memoria, e l'inflater legge i dati
+ * compressi direttamente dalla mappatura, senza copiarli sullo heap. Oltre i 2 GB (il limite di un
+ * {@code ByteBuffer}), o quando il file verrà sovrascritto, in memoria finiscono solo i chunk che precedono gli IDAT,
+ * e i dati compressi vengono letti dal file a blocchi.
+ */
+final class PngDecoder implements Closeable {
+    static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    static final int COLOR_GRAY = 0;
+    static final int COLOR_RGB = 2;
+    static final int COLOR_PALETTE = 3;
+    static final int COLOR_RGBA = 6;
+
+    /**
+     * Dimensione dalla quale un file viene mappato in memoria invece di essere letto sullo heap.
+     * Sotto questa soglia leggerlo costa poco; sopra, la mappatura evita di copiarlo. Una mappatura viene
+     * rilasciata solo dal GC, e su Windows fino ad allora il file non si può sovrascrivere: per questo
+     * non si mappa ogni file, né un file che sta per essere riscritto (vedi {@link #open(Path, boolean)}).
+     */
+    static final long MAP_THRESHOLD = 64L << 20;
+
+    private static final int HEADER_BYTES = 8 + 8 + 13;
+    /**
+     * Byte di dati compressi letti a ogni accesso al file, quando non è né in memoria né mappato
+     */
+    private static final int FILE_BUFFER_BYTES = 64 << 10;
+
+    /**
+     * Dati del chunk IHDR
+     */
+    record Header(int width, int height, int bitDepth, int colorType, int interlace) {
+    }
+
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bitDepth;
+    private final int samplesPerPixel;
+    private final int bytesPerPixel;
+    private final int[] palette;
+
+    private final Inflater inflater = new Inflater();
+    private boolean idatEnded;
+    /**
+     * Solo per i file non caricati né mappati: il canale da cui leggere gli IDAT, la posizione del prossimo byte
+     * da leggere, i byte che restano nel chunk corrente e il buffer in cui finiscono
+     */
+    private FileChannel file;
+    private long filePosition;
+    private long idatRemaining;
+    private ByteBuffer fileBuffer;
+
+    private byte[] previousRow;
+    private byte[] currentRow;
+    private int rowsRead;
+
+    private PngDecoder(ByteBuffer data, Header header, int[] palette) {
+        this.data = data;
+        this.width = header.width();
+        this.height = header.height();
+        this.colorType = header.colorType();
+        this.bitDepth = header.bitDepth();
+        this.samplesPerPixel = switch (colorType) {
+            case COLOR_RGB -> 3;
+            case COLOR_RGBA -> 4;
+            default -> 1;
+        };
+        this.bytesPerPixel = samplesPerPixel * bitDepth / 8;
+        this.palette = palette;
+        // Ogni riga è preceduta dal byte che indica il filtro usato
+        this.previousRow = new byte[1 + width * bytesPerPixel];
+        this.currentRow = new byte[1 + width * bytesPerPixel];
+    }
+
+    /**
+     * Apre un PNG e ne legge i chunk fino al primo IDAT; i file da {@link #MAP_THRESHOLD} a 2 GB vengono
+     * mappati in memoria.
+     *
+     * @return il decoder, oppure {@code null} se il file non è un PNG o usa un formato non gestito
+     */
+    static PngDecoder open(Path path) throws IOException {
+        return open(path, true);
+    }
+
+    /**
+     * Come {@link #open(Path)}. Con {@code map} false, e comunque oltre i 2 GB, un file da {@link #MAP_THRESHOLD}
+     * in su non viene mappato: sullo heap finiscono solo i chunk fino al primo IDAT, e i dati compressi si leggono
+     * dal file a blocchi, man mano che servono. In questo caso il decoder tiene aperto il file fino a
+     * {@link #close()}, e lo si può sovrascrivere appena è chiuso.
+     */
+    static PngDecoder open(Path path, boolean map) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            // Prima solo l'header: se il formato non è gestito non serve leggere il resto del file
+            long size = channel.size();
+            Header header = readHeader(channel);
+            if (!decodable(header)) {
+                return null;
+            }
+            if (size < MAP_THRESHOLD) {
+                return open(read(channel, (int) size));
+            }
+            if (map && size <= Integer.MAX_VALUE) {
+                return open(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+
+            long idat = firstIdat(channel, header);
+            if (idat < 0) {
+                return null;
+            }
+            if (idat + 8 > Integer.MAX_VALUE) {
+                throw new IOException("Chunks before image data too large");
+            }
+            // Il buffer arriva fino all'intestazione del primo IDAT compresa, che readChunks deve vedere
+            PngDecoder decoder = open(read(channel, (int) idat + 8));
+            if (decoder != null) {
+                decoder.file = channel;
+                decoder.filePosition = idat;
+                channel = null;
+            }
+            return decoder;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Come {@link #open(Path)}, per un PNG già in memoria tra position e limit di {@code png}
+     * (che non vengono modificati)
+     */
+    static PngDecoder open(ByteBuffer png) throws IOException {
+        ByteBuffer data = png.slice();
+        try {
+            Header header = readHeader(data);
+            if (!decodable(header)) {
+                return null;
+            }
+            return readChunks(data, header);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new EOFException("Truncated PNG");
+        }
+    }
+
+    /**
+     * Legge soltanto la firma e il chunk IHDR, senza toccare i dati dell'immagine.
+     *
+     * @return l'header, oppure {@code null} se il file non è un PNG
+     */
+    static Header readHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readHeader(channel);
+        }
+    }
+
+    /**
+     * Controlla se {@link #open(Path)} gestisce il file leggendo solo l'header e le intestazioni dei chunk fino al
+     * primo IDAT, senza caricare né mappare il resto.
+     *
+     * @return false anche se il file non è un PNG o è troncato prima degli IDAT
+     */
+    static boolean decodable(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            return decodable(header) && firstIdat(channel, header) >= 0;
+        }
+    }
+
+    /**
+     * Scorre le intestazioni dei chunk dal canale, senza leggerne i dati.
+     *
+     * @return la posizione del primo IDAT, oppure -1 se prima ci sono chunk che il decoder non gestisce
+     * (o manca la palette, o il file finisce)
+     */
+    private static long firstIdat(FileChannel channel, Header header) throws IOException {
+        boolean palette = false;
+        ByteBuffer chunk = ByteBuffer.allocate(8);
+        for (long position = SIGNATURE.length; ; ) {
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0) {
+                    return -1;
+                }
+            }
+            switch (chunkType(chunk.flip().position(4))) {
+                case "PLTE" -> palette = true;
+                case "tRNS", "iCCP", "IEND" -> {
+                    return -1;
+                }
+                case "IDAT" -> {
+                    return header.colorType() != COLOR_PALETTE || palette ? position : -1;
+                }
+                default -> {
+                }
+            }
+            // Lunghezza, tipo, dati e CRC
+            position += 12 + Integer.toUnsignedLong(chunk.getInt(0));
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        try {
+            return readHeader(read(channel, (int) Math.min(channel.size(), HEADER_BYTES)));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new EOFException("Truncated PNG");
+        }
+    }
+
+    /**
+     * @return i primi {@code size} byte del file, in un buffer pronto da leggere
+     */
+    private static ByteBuffer read(FileChannel channel, int size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, bytes.position()) < 0) {
+                break;
+            }
+        }
+        return bytes.flip();
+    }
+
+    /**
+     * Legge firma e IHDR, che per specifica è sempre il primo chunk; il buffer resta posizionato subito dopo
+     * i 13 byte dei dati di IHDR
+     */
+    private static Header readHeader(ByteBuffer data) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        if (data.remaining() < signature.length) {
+            return null;
+        }
+        data.get(signature);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            return null;
+        }
+
+        int length = data.getInt();
+        if (!chunkType(data).equals("IHDR") || length < 13) {
+            throw new IOException("Missing IHDR");
+        }
+        int width = data.getInt();
+        int height = data.getInt();
+        int bitDepth = data.get() & 0xFF;
+        int colorType = data.get() & 0xFF;
+        data.get(); // compressione
+        data.get(); // filtro
+        int interlace = data.get() & 0xFF;
+        // Con dimensioni fuori scala il buffer di riga avrebbe lunghezza negativa
+        int samples = switch (colorType) {
+            case COLOR_RGB -> 3;
+            case COLOR_RGBA -> 4;
+            case 4 -> 2; // grigi con alfa
+            default -> 1;
+        };
+        if (width <= 0 || height <= 0 || ((long) width * samples * bitDepth + 7) / 8 + 1 > Integer.MAX_VALUE) {
+            throw new IOException("Invalid image size: " + width + "x" + height);
+        }
+        data.position(data.position() + length - 13);
+        return new Header(width, height, bitDepth, colorType, interlace);
+    }
+
+    /**
+     * Scorre i chunk che seguono IHDR fino al primo IDAT
+     */
+    private static PngDecoder readChunks(ByteBuffer data, Header header) throws IOException {
+        int[] palette = null;
+        skip(data, 4); // CRC di IHDR
+        while (true) {
+            int length = data.getInt();
+            String type = chunkType(data);
+            switch (type) {
+                case "PLTE" -> {
+                    if (length > 3 * 256 || length % 3 != 0) {
+                        throw new IOException("Invalid palette length: " + length);
+                    }
+                    palette = new int[256];
+                    for (int i = 0; i < length / 3; i++) {
+                        palette[i] = ((data.get() & 0xFF) << 16) | ((data.get() & 0xFF) << 8) | (data.get() & 0xFF);
+                    }
+                }
+                // Trasparenza e profili colore cambiano i valori prodotti da ImageIO o dalla conversione in RGB
+                case "tRNS", "iCCP" -> {
+                    return null;
+                }
+                case "IDAT" -> {
+                    if (header.colorType() == COLOR_PALETTE && palette == null) {
+                        throw new IOException("IDAT before PLTE");
+                    }
+                    // Il buffer torna all'inizio del chunk: i dati li consuma l'inflater
+                    data.position(data.position() - 8);
+                    return new PngDecoder(data, header, palette);
+                }
+                case "IEND" -> throw new IOException("No image data");
+                default -> skip(data, length);
+            }
+            skip(data, 4); // CRC
+        }
+    }
+
+    private static boolean decodable(Header header) {
+        return header != null && header.interlace() == 0 && supported(header.colorType(), header.bitDepth());
+    }
+
+    /**
+     * RGB e RGBA restano nel formato nativo (vedi {@link ChannelAccessor#direct}); grigi e palette vengono
+     * convertiti in RGB, e solo a 8 bit la conversione è esatta
+     */
+    private static boolean supported(int colorType, int bitDepth) {
+        return switch (colorType) {
+            case COLOR_RGB, COLOR_RGBA -> bitDepth == 8 || bitDepth == 16;
+            case COLOR_GRAY, COLOR_PALETTE -> bitDepth == 8;
+            default -> false;
+        };
+    }
+
+    private static String chunkType(ByteBuffer data) {
+        byte[] type = new byte[4];
+        data.get(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private static void skip(ByteBuffer data, int n) {
+        data.position(data.position() + n);
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int bitDepth() {
+        return bitDepth;
+    }
+
+    int colorType() {
+        return colorType;
+    }
+
+    /**
+     * @return true se i campioni sono già RGB o RGBA; altrimenti ogni pixel è un grigio o un indice di palette
+     * da convertire con {@link #rgb(byte)}
+     */
+    boolean isRgb() {
+        return colorType == COLOR_RGB || colorType == COLOR_RGBA;
+    }
+
+    /**
+     * @return il colore {@code 0x00RRGGBB} di un pixel in scala di grigi o con palette
+     */
+    int rgb(byte sample) {
+        return colorType == COLOR_PALETTE ? palette[sample & 0xFF] : (sample & 0xFF) * 0x010101;
+    }
+
+    /**
+     * Decodifica la prossima riga e ne copia i campioni, così come sono nel PNG, in {@code out} a partire da
+     * {@code offset}
+     */
+    void readRow(byte[] out, int offset) throws IOException {
+        if (rowsRead >= height) {
+            throw new EOFException("No more rows");
+        }
+
+        byte[] swap = previousRow;
+        previousRow = currentRow;
+        currentRow = swap;
+
+        inflateFully(currentRow);
+        unfilter(currentRow[0], currentRow, previousRow);
+        rowsRead++;
+
+        System.arraycopy(currentRow, 1, out, offset, currentRow.length - 1);
+    }
+
+    /**
+     * Riempie {@code row} dallo stream compresso, leggendo altri IDAT se necessario
+     */
+    private void inflateFully(byte[] row) throws IOException {
+        int done = 0;
+        try {
+            while (done < row.length) {
+                int n = inflater.inflate(row, done, row.length - done);
+                done += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new EOFException("Truncated image data");
+                    }
+                    if (inflater.needsInput()) {
+                        fillInflater();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt image data", e);
+        }
+    }
+
+    /**
+     * Passa all'inflater il prossimo chunk IDAT, come slice del buffer (nessuna copia se è mappato)
+     */
+    private void fillInflater() throws IOException {
+        if (file != null) {
+            fillInflaterFromFile();
+            return;
+        }
+        try {
+            while (!idatEnded) {
+                int length = data.getInt();
+                if (!chunkType(data).equals("IDAT")) {
+                    idatEnded = true;
+                    break;
+                }
+                ByteBuffer idat = data.slice(data.position(), length);
+                skip(data, length + 4); // dati e CRC
+                if (length > 0) {
+                    inflater.setInput(idat);
+                    return;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            idatEnded = true;
+        }
+        throw new EOFException("Truncated image data");
+    }
+
+    /**
+     * Come {@link #fillInflater()} quando i dati restano nel file: legge il prossimo blocco di IDAT dal canale,
+     * passando alle intestazioni dei chunk successivi quando serve
+     */
+    private void fillInflaterFromFile() throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(8);
+        while (idatRemaining == 0) {
+            if (idatEnded) {
+                throw new EOFException("Truncated image data");
+            }
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                if (file.read(chunk, filePosition + chunk.position()) < 0) {
+                    idatEnded = true;
+                    throw new EOFException("Truncated image data");
+                }
+            }
+            int length = chunk.flip().getInt();
+            if (!chunkType(chunk).equals("IDAT") || length < 0) {
+                idatEnded = true;
+                throw new EOFException("Truncated image data");
+            }
+            filePosition += 8;
+            idatRemaining = length;
+        }
+
+        if (fileBuffer == null) {
+            fileBuffer = ByteBuffer.allocate(FILE_BUFFER_BYTES);
+        }
+        fileBuffer.clear().limit((int) Math.min(fileBuffer.capacity(), idatRemaining));
+        int n = file.read(fileBuffer, filePosition);
+        if (n < 0) {
+            idatEnded = true;
+            throw new EOFException("Truncated image data");
+        }
+        filePosition += n;
+        idatRemaining -= n;
+        if (idatRemaining == 0) {
+            filePosition += 4; // CRC
+        }
+        inflater.setInput(fileBuffer.flip());
+    }
+
+    /**
+     * Annulla il filtro PNG di {@code row} (byte 0 escluso), usando la riga precedente già ricostruita
+     */
+    private void unfilter(int filter, byte[] row, byte[] prior) throws IOException {
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0 -> {
+            }
+            case 1 -> {
+                for (int i = 1 + bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+            }
+            case 2 -> {
+                for (int i = 1; i < row.length; i++) {
+                    row[i] += prior[i];
+                }
+            }
+            case 3 -> {
+                for (int i = 1; i < row.length; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (prior[i] & 0xFF)) >>> 1);
+                }
+            }
+            case 4 -> {
+                for (int i = 1; i < row.length; i++) {
+                    int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prior[i] & 0xFF;
+                    int c = i > bpp ? prior[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) paeth(a, b, c);
+                }
+            }
+            default -> throw new IOException("Unknown filter type: " + filter);
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Vista in sola lettura dei canali: le righe vengono decodificate la prima volta che si accede a un loro pixel
+     */
+    ChannelAccessor channels() {
+        return new LazyRows();
+    }
+
+    /**
+     * Decodifica tutte le righe (ancora da leggere) in un'immagine equivalente a quella di {@code openImage}:
+     * RGB o RGBA con i campioni nativi, oppure {@code TYPE_INT_RGB} per grigi e palette.
+     * Da chiamare su un decoder appena aperto.
+     */
+    BufferedImage readImage() throws IOException {
+        if (rowsRead > 0) {
+            throw new IllegalStateException("Rows already read");
+        }
+        int rowBytes = width * bytesPerPixel;
+        if ((long) rowBytes * height > Integer.MAX_VALUE - 8) {
+            throw new IOException("Image too large: " + width + "x" + height);
+        }
+
+        if (colorType == COLOR_GRAY || colorType == COLOR_PALETTE) {
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            byte[] row = new byte[rowBytes];
+            for (int y = 0; y < height; y++) {
+                readRow(row, 0);
+                for (int x = 0, base = y * width; x < width; x++) {
+                    pixels[base + x] = rgb(row[x]);
+                }
+            }
+            return img;
+        }
+
+        boolean alpha = colorType == COLOR_RGBA;
+        int[] bandOffsets = alpha ? new int[]{0, 1, 2, 3} : new int[]{0, 1, 2};
+        ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                bitDepth == 16 ? DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE);
+        DataBuffer buffer;
+        if (bitDepth == 16) {
+            // Campioni big-endian a coppie di byte
+            short[] samples = new short[width * samplesPerPixel * height];
+            byte[] row = new byte[rowBytes];
+            for (int y = 0, k = 0; y < height; y++) {
+                readRow(row, 0);
+                for (int i = 0; i < rowBytes; i += 2) {
+                    samples[k++] = (short) (((row[i] & 0xFF) << 8) | (row[i + 1] & 0xFF));
+                }
+            }
+            buffer = new DataBufferUShort(samples, samples.length);
+        } else {
+            // Le righe vengono decodificate direttamente nell'array del raster
+            byte[] samples = new byte[rowBytes * height];
+            for (int y = 0; y < height; y++) {
+                readRow(samples, y * rowBytes);
+            }
+            buffer = new DataBufferByte(samples, samples.length);
+        }
+        PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(buffer.getDataType(), width, height,
+                samplesPerPixel, width * samplesPerPixel, bandOffsets);
+        return new BufferedImage(cm, Raster.createWritableRaster(sm, buffer, null), false, null);
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final class LazyRows implements ChannelAccessor {
+        private final int rowBytes = width * bytesPerPixel;
+        private byte[] samples = new byte[0];
+        private int decodedPixels;
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public int sampleBits() {
+            // Grigi e palette valgono come RGB a 8 bit, come dopo la conversione di openImage
+            return colorType == COLOR_RGB || colorType == COLOR_RGBA ? bitDepth : 8;
+        }
+
+        @Override
+        public int bit(int pixel, int channel, int plane) {
+            if (pixel >= decodedPixels) {
+                decodeThrough(pixel);
+            }
+            int start = (pixel / width) * rowBytes;
+            int x = pixel % width;
+            return switch (colorType) {
+                case COLOR_PALETTE -> (palette[samples[start + x] & 0xFF] >>> (16 - 8 * channel + plane)) & 1;
+                case COLOR_GRAY -> (samples[start + x] >>> plane) & 1;
+                default -> {
+                    int idx = start + (x * samplesPerPixel + channel) * (bitDepth / 8);
+                    int sample = bitDepth == 16
+                            ? ((samples[idx] & 0xFF) << 8) | (samples[idx + 1] & 0xFF)
+                            : samples[idx] & 0xFF;
+                    yield (sample >>> plane) & 1;
+                }
+            };
+        }
+
+        @Override
+        public void setBit(int pixel, int channel, int plane, int bit) {
+            throw new UnsupportedOperationException("Read-only image");
+        }
+
+        @Override
+        public void readPixels(int px, int count, int channel, int plane, BitCursor out) {
+            if (VECTOR == null || channel != -1 || colorType != COLOR_RGB || bitDepth != 8 || count == 0) {
+                ChannelAccessor.super.readPixels(px, count, channel, plane, out);
+                return;
+            }
+            if (px + count > decodedPixels) {
+                decodeThrough(px + count - 1);
+            }
+            // Le righe sono una dopo l'altra, tre campioni per pixel
+            VECTOR.readBytes(samples, 3 * px, 3 * count, plane, out);
+        }
+
+        private void decodeThrough(int pixel) {
+            int rows = pixel / width + 1;
+            if (rows * rowBytes > samples.length) {
+                int capacity = Math.min(height, Math.max(rows, 2 * samples.length / Math.max(1, rowBytes)));
+                samples = Arrays.copyOf(samples, capacity * rowBytes);
+            }
+            try {
+                while (rowsRead < rows) {
+                    readRow(samples, rowsRead * rowBytes);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            decodedPixels = rowsRead * width;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encoder PNG con livello di compressione, filtro e numero di thread configurabili.
+ * <p>
+ * Con più thread l'immagine viene divisa in blocchi di righe compressi in modo indipendente, come fa
+ * {@code pigz --independent}: ogni blocco diventa uno stream deflate "raw" chiuso con un flush, e i blocchi
+ * concatenati formano un unico stream zlib valido. Si perde un po' di compressione ai confini dei blocchi,
+ * ma la scrittura scala con i core.
+ */
+final class PngEncoder {
+
+    /**
+     * Filtro applicato alle righe prima della compressione
+     */
+    enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Per ogni riga prova tutti i filtri e sceglie quello con la minima somma dei valori assoluti
+         */
+        ADAPTIVE;
+
+        static Filter parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Righe di pixel già nel formato PNG (campioni big-endian, senza byte di filtro).
+     * L'encoder chiede ogni riga una sola volta, in ordine, sempre dallo stesso thread: la sorgente può
+     * quindi anche decodificarle al volo da uno stream.
+     */
+    interface RowSource {
+        int width();
+
+        int height();
+
+        int bitDepth();
+
+        int colorType();
+
+        /**
+         * Scrive i byte della riga {@code y} in {@code out}, dalla posizione 0
+         */
+        void row(int y, byte[] out);
+    }
+
+    static final int DEFAULT_LEVEL = 4;
+    static final Filter DEFAULT_FILTER = Filter.ADAPTIVE;
+
+    /**
+     * Dimensione minima (non compressa) di un blocco compresso da un singolo thread
+     */
+    private static final int BLOCK_BYTES = 256 * 1024;
+    private static final int IDAT_BYTES = 64 * 1024;
+
+    private final int level;
+    private final Filter filter;
+    private final int threads;
+
+    PngEncoder(int level, Filter filter, int threads) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        this.level = level;
+        this.filter = filter;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sorgente nel formato nativo dell'immagine: RGB o RGBA, a 8 o 16 bit per canale, se il layout è gestito
+     * da {@link ChannelAccessor#direct}; altrimenti RGB a 8 bit tramite {@code getRGB}.
+     * Per {@code int} impacchettati e campioni a 8 bit legge direttamente l'array dei pixel.
+     */
+    static RowSource rows(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        WritableRaster raster = img.getRaster();
+        boolean direct = ChannelAccessor.direct(img) != null;
+        int bands = direct ? raster.getNumBands() : 3;
+        int depth = direct ? img.getColorModel().getComponentSize(0) : 8;
+
+        int[] ints = null;
+        byte[] bytes = null;
+        int offset = 0;
+        int pixelStride = 0;
+        int scanlineStride = 0;
+        int[] bandOffsets = null;
+        if (direct && raster.getDataBuffer() instanceof DataBufferInt buffer
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sm) {
+            ints = buffer.getData();
+            offset = buffer.getOffset();
+            scanlineStride = sm.getScanlineStride();
+        } else if (direct && raster.getDataBuffer() instanceof DataBufferByte buffer
+                && raster.getSampleModel() instanceof ComponentSampleModel sm) {
+            bytes = buffer.getData();
+            offset = buffer.getOffset();
+            pixelStride = sm.getPixelStride();
+            scanlineStride = sm.getScanlineStride();
+            bandOffsets = sm.getBandOffsets();
+        }
+
+        int[] intData = ints;
+        byte[] byteData = bytes;
+        int dataOffset = offset;
+        int pxStride = pixelStride;
+        int lineStride = scanlineStride;
+        int[] offsets = bandOffsets;
+        return new RowSource() {
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public int height() {
+                return height;
+            }
+
+            @Override
+            public int bitDepth() {
+                return depth;
+            }
+
+            @Override
+            public int colorType() {
+                return bands == 4 ? 6 : 2;
+            }
+
+            @Override
+            public void row(int y, byte[] out) {
+                if (intData != null) {
+                    int base = dataOffset + y * lineStride;
+                    for (int x = 0, k = 0; x < width; x++) {
+                        int argb = intData[base + x];
+                        out[k++] = (byte) (argb >>> 16);
+                        out[k++] = (byte) (argb >>> 8);
+                        out[k++] = (byte) argb;
+                        if (bands == 4) {
+                            out[k++] = (byte) (argb >>> 24);
+                        }
+                    }
+                } else if (byteData != null) {
+                    int base = dataOffset + y * lineStride;
+                    for (int x = 0, k = 0; x < width; x++) {
+                        for (int b = 0; b < bands; b++) {
+                            out[k++] = byteData[base + x * pxStride + offsets[b]];
+                        }
+                    }
+                } else if (direct) {
+                    sampleBytes(raster.getPixels(0, y, width, 1, (int[]) null), depth, out);
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        int rgb = img.getRGB(x, y);
+                        out[3 * x] = (byte) (rgb >>> 16);
+                        out[3 * x + 1] = (byte) (rgb >>> 8);
+                        out[3 * x + 2] = (byte) rgb;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Scrive i campioni in {@code out} come byte PNG: uno per campione a 8 bit, due (big-endian) a 16 bit
+     */
+    static void sampleBytes(int[] samples, int depth, byte[] out) {
+        if (depth == 16) {
+            for (int i = 0; i < samples.length; i++) {
+                out[2 * i] = (byte) (samples[i] >>> 8);
+                out[2 * i + 1] = (byte) samples[i];
+            }
+        } else {
+            for (int i = 0; i < samples.length; i++) {
+                out[i] = (byte) samples[i];
+            }
+        }
+    }
+
+    void encode(RowSource source, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(PngDecoder.SIGNATURE);
+
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream ihdrData = new DataOutputStream(ihdr);
+        ihdrData.writeInt(source.width());
+        ihdrData.writeInt(source.height());
+        ihdrData.writeByte(source.bitDepth());
+        ihdrData.writeByte(source.colorType());
+        ihdrData.writeByte(0); // compressione: deflate
+        ihdrData.writeByte(0); // filtro: adattivo
+        ihdrData.writeByte(0); // interlacciamento: nessuno
+        writeChunk(data, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+        int rowBytes = (int) (((long) source.width() * bitsPerPixel(source) + 7) / 8);
+        int rowsPerBlock = Math.max(1, BLOCK_BYTES / (rowBytes + 1));
+        if (threads == 1 || source.height() <= rowsPerBlock) {
+            encodeSequential(source, rowBytes, data);
+        } else {
+            encodeParallel(source, rowBytes, rowsPerBlock, data);
+        }
+
+        writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    private static int bitsPerPixel(RowSource source) {
+        int samples = switch (source.colorType()) {
+            case 2 -> 3;
+            case 4 -> 2;
+            case 6 -> 4;
+            default -> 1;
+        };
+        return samples * source.bitDepth();
+    }
+
+    /**
+     * Distanza in byte del pixel "a sinistra" usato dai filtri (almeno 1 con meno di 8 bit per pixel)
+     */
+    private static int bytesPerPixel(RowSource source) {
+        return Math.max(1, bitsPerPixel(source) / 8);
+    }
+
+    private void encodeSequential(RowSource source, int rowBytes, DataOutputStream out) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            RowFilter rows = new RowFilter(bytesPerPixel(source), rowBytes, filter);
+            byte[] row = new byte[rowBytes];
+            byte[] spare = new byte[rowBytes];
+            byte[] idat = new byte[IDAT_BYTES];
+            int idatLength = 0;
+            for (int y = 0; y < source.height(); y++) {
+                boolean lastRow = y == source.height() - 1;
+                source.row(y, row);
+                deflater.setInput(rows.next(row));
+                byte[] swap = spare;
+                spare = row;
+                row = swap;
+                if (lastRow) {
+                    deflater.finish();
+                }
+                while (!deflater.needsInput() || (lastRow && !deflater.finished())) {
+                    idatLength += deflater.deflate(idat, idatLength, idat.length - idatLength);
+                    if (idatLength == idat.length) {
+                        writeChunk(out, "IDAT", idat, 0, idatLength);
+                        idatLength = 0;
+                    }
+                }
+            }
+            if (idatLength > 0 || source.height() == 0) {
+                writeChunk(out, "IDAT", idat, 0, idatLength);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Un blocco di righe compresso: stream deflate raw e checksum Adler-32 dei dati non compressi
+     */
+    private record Block(byte[] compressed, int compressedLength, long adler, long length) {
+    }
+
+    private void encodeParallel(RowSource source, int rowBytes, int rowsPerBlock, DataOutputStream out)
+            throws IOException {
+        int height = source.height();
+        int blocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+        // Zlib header (RFC 1950): deflate con finestra da 32K, livello indicativo nei bit FLEVEL
+        int cmf = 0x78;
+        int flevel = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        writeChunk(out, "IDAT", new byte[]{(byte) cmf, (byte) flg}, 0, 2);
+
+        // Le righe vengono lette qui, in ordine, e passate ai thread a blocchi; al massimo 2 blocchi per thread
+        // in volo: la memoria resta limitata anche per immagini enormi
+        long adler = 1;
+        int bpp = bytesPerPixel(source);
+        try (ExecutorService pool = new ForkJoinPool(threads)) {
+            Deque<Future<Block>> pending = new ArrayDeque<>();
+            byte[] prior = new byte[rowBytes];
+            int next = 0;
+            while (next < blocks || !pending.isEmpty()) {
+                while (next < blocks && pending.size() < 2 * threads) {
+                    int from = next * rowsPerBlock;
+                    int to = Math.min(height, from + rowsPerBlock);
+                    boolean last = next == blocks - 1;
+                    byte[][] rows = new byte[to - from][rowBytes];
+                    for (int y = from; y < to; y++) {
+                        source.row(y, rows[y - from]);
+                    }
+                    byte[] before = prior;
+                    prior = rows[rows.length - 1];
+                    pending.add(pool.submit(() -> compressBlock(rows, before, bpp, rowBytes, last)));
+                    next++;
+                }
+                Block block = pending.removeFirst().get();
+                writeChunk(out, "IDAT", block.compressed(), 0, block.compressedLength());
+                adler = adler32Combine(adler, block.adler(), block.length());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("PNG encoding interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("PNG encoding failed", e.getCause());
+        }
+
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        writeChunk(out, "IDAT", trailer, 0, trailer.length);
+    }
+
+    /**
+     * Filtra e comprime le righe di un blocco; {@code prior} è l'ultima riga del blocco precedente (zeri per il primo)
+     */
+    private Block compressBlock(byte[][] rows, byte[] prior, int bpp, int rowBytes, boolean last) {
+        RowFilter filters = new RowFilter(bpp, rowBytes, filter);
+        filters.prime(prior);
+
+        Deflater deflater = new Deflater(level, true);
+        Adler32 adler = new Adler32();
+        byte[] buffer = new byte[rows.length * (rowBytes + 1) / 2 + 64];
+        int length = 0;
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                byte[] filtered = filters.next(rows[i]);
+                adler.update(filtered);
+                deflater.setInput(filtered);
+
+                // L'ultimo blocco chiude lo stream; gli altri finiscono con un SYNC_FLUSH, che svuota
+                // l'output allineandolo al byte così che il blocco successivo possa seguirlo direttamente
+                boolean lastRow = i == rows.length - 1;
+                boolean finishing = lastRow && last;
+                if (finishing) {
+                    deflater.finish();
+                }
+                int flush = lastRow && !last ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH;
+                do {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length, flush);
+                } while (!deflater.needsInput() || length == buffer.length || (finishing && !deflater.finished()));
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Block(buffer, length, adler.getValue(), (long) rows.length * (rowBytes + 1));
+    }
+
+    /**
+     * Combina le checksum Adler-32 di due sequenze consecutive (da zlib, {@code adler32_combine})
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Applica il filtro PNG riga per riga, tenendo la riga precedente non filtrata
+     */
+    private static final class RowFilter {
+        private final int bpp;
+        private final Filter filter;
+        private byte[] previous;
+        private byte[] current;
+        private final byte[][] candidates;
+
+        RowFilter(int bpp, int rowBytes, Filter filter) {
+            this.bpp = bpp;
+            this.filter = filter;
+            this.previous = new byte[rowBytes];
+            int count = filter == Filter.ADAPTIVE ? 5 : 1;
+            this.candidates = new byte[count][1 + rowBytes];
+        }
+
+        /**
+         * Usa {@code row} come riga precedente della prossima da filtrare
+         */
+        void prime(byte[] row) {
+            previous = row;
+        }
+
+        /**
+         * Filtra {@code row}, che viene tenuta come riga precedente: non va modificata fino alla chiamata successiva.
+         *
+         * @return la riga filtrata, con il tipo di filtro nel primo byte
+         */
+        byte[] next(byte[] row) {
+            current = row;
+            byte[] result;
+            if (filter == Filter.ADAPTIVE) {
+                result = null;
+                long best = Long.MAX_VALUE;
+                for (int type = 0; type < 5; type++) {
+                    byte[] candidate = candidates[type];
+                    apply(type, candidate);
+                    long sum = 0;
+                    for (int i = 1; i < candidate.length && sum < best; i++) {
+                        sum += Math.abs(candidate[i]);
+                    }
+                    if (sum < best) {
+                        best = sum;
+                        result = candidate;
+                    }
+                }
+            } else {
+                result = candidates[0];
+                apply(filter.ordinal(), result);
+            }
+
+            previous = current;
+            return result;
+        }
+
+        private void apply(int type, byte[] out) {
+            byte[] row = current;
+            byte[] prior = previous;
+            out[0] = (byte) type;
+            switch (type) {
+                case 0 -> System.arraycopy(row, 0, out, 1, row.length);
+                case 1 -> {
+                    for (int i = 0; i < row.length; i++) {
+                        int left = i >= bpp ? row[i - bpp] : 0;
+                        out[1 + i] = (byte) (row[i] - left);
+                    }
+                }
+                case 2 -> {
+                    for (int i = 0; i < row.length; i++) {
+                        out[1 + i] = (byte) (row[i] - prior[i]);
+                    }
+                }
+                case 3 -> {
+                    for (int i = 0; i < row.length; i++) {
+                        int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        out[1 + i] = (byte) (row[i] - ((left + (prior[i] & 0xFF)) >>> 1));
+                    }
+                }
+                default -> {
+                    for (int i = 0; i < row.length; i++) {
+                        int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        int b = prior[i] & 0xFF;
+                        int c = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+                        out[1 + i] = (byte) (row[i] - PngDecoder.paeth(a, b, c));
+                    }
+                }
+            }
+        }
+    }
+}
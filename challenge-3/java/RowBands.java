@@ -0,0 +1,108 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lettura e scrittura dei bit di un payload grande divise in fasce di righe, elaborate in parallelo sul
+ * {@link java.util.concurrent.ForkJoinPool} comune.
+ * <p>
+ * Il bit {@code i} cade sempre sullo stesso pixel (tre bit per pixel con tutti i canali, uno con un canale
+ * solo), per cui ogni fascia sa da sola quali bit le spettano. Le fasce sono di {@value #BAND_ROWS} righe:
+ * iniziano su un byte del flusso e su un pixel intero, quindi nessun byte del payload e nessuna riga
+ * dell'immagine è condivisa tra due thread.
+ */
+@SuppressWarnings("serial") // RecursiveAction è Serializable, ma le fasce non vengono mai serializzate
+final class RowBands extends RecursiveAction {
+    /**
+     * Righe per fascia, multiplo di 8
+     */
+    private static final int BAND_ROWS = 64;
+
+    private final ChannelAccessor pixels;
+    private final BitCursor bits;
+    private final long firstBit;
+    private final long bandBits;
+    private final int channel;
+    private final int plane;
+    private final boolean write;
+    private final long from;
+    private final long to;
+
+    private RowBands(
+            ChannelAccessor pixels,
+            BitCursor bits,
+            long firstBit,
+            int channel,
+            int plane,
+            boolean write,
+            long from,
+            long to
+    ) {
+        this.pixels = pixels;
+        this.bits = bits;
+        this.firstBit = firstBit;
+        this.bandBits = (long) BAND_ROWS * pixels.width() * (channel == -1 ? 3 : 1);
+        this.channel = channel;
+        this.plane = plane;
+        this.write = write;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Come {@link ChannelAccessor#readBits}, in parallelo se {@code out} ha almeno {@code minBytes} byte da
+     * riempire e {@code fromBit} è all'inizio di un byte
+     */
+    static void readBits(ChannelAccessor pixels, long fromBit, int channel, int plane, BitCursor out, int minBytes) {
+        int n = out.remaining();
+        if (n / 8 < minBytes || fromBit % 8 != 0 || out.position() % 8 != 0) {
+            pixels.readBits(fromBit, channel, plane, out);
+            return;
+        }
+
+        // Gli accessor pigri decodificano qui fino all'ultimo pixel, su un solo thread; le fasce poi leggono soltanto
+        long last = fromBit + n - 1;
+        if (channel == -1) {
+            pixels.bit((int) (last / 3), (int) (last % 3), plane);
+        } else {
+            pixels.bit((int) last, channel, plane);
+        }
+
+        new RowBands(pixels, out, fromBit - out.position(), channel, plane, false, fromBit, fromBit + n).invoke();
+        out.skip(n);
+    }
+
+    /**
+     * Come {@link ChannelAccessor#writeBits}, in parallelo se {@code in} ha almeno {@code minBytes} byte.
+     * {@code pixels} deve tollerare scritture concorrenti su righe diverse.
+     */
+    static void writeBits(ChannelAccessor pixels, int channel, int plane, BitCursor in, int minBytes) {
+        int n = in.remaining();
+        if (n / 8 < minBytes || in.position() != 0) {
+            pixels.writeBits(0, channel, plane, in);
+            return;
+        }
+
+        new RowBands(pixels, in, 0, channel, plane, true, 0, n).invoke();
+        in.skip(n);
+    }
+
+    @Override
+    protected void compute() {
+        long firstBand = from / bandBits;
+        long lastBand = (to - 1) / bandBits;
+        if (firstBand == lastBand) {
+            BitCursor window = bits.window((int) (from - firstBit), (int) (to - firstBit));
+            if (write) {
+                pixels.writeBits(from, channel, plane, window);
+            } else {
+                pixels.readBits(from, channel, plane, window);
+            }
+            return;
+        }
+
+        long middle = (firstBand + (lastBand - firstBand + 1) / 2) * bandBits;
+        invokeAll(
+                new RowBands(pixels, bits, firstBit, channel, plane, write, from, middle),
+                new RowBands(pixels, bits, firstBit, channel, plane, write, middle, to)
+        );
+    }
+}
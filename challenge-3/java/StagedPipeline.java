@@ -0,0 +1,210 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline a stadi: ogni elemento passa in ordine per tutti gli stadi, ciascuno con i propri thread.
+ * <p>
+ * Tra uno stadio e il successivo c'è una coda limitata: quando uno stadio è più lento del precedente,
+ * la coda si riempie e chi produce si ferma (backpressure), così gli elementi in volo restano limitati.
+ * Un elemento per cui uno stadio lancia un'eccezione o restituisce {@code null} esce dalla pipeline come fallito.
+ *
+ * @param <K> il tipo della chiave che identifica ogni elemento (ad esempio il suo percorso)
+ */
+final class StagedPipeline<K> {
+
+    /**
+     * Elaborazione di uno stadio
+     */
+    @FunctionalInterface
+    interface Step<K, I, O> {
+        O apply(K key, I value) throws Exception;
+    }
+
+    /**
+     * Statistiche di uno stadio al termine dell'esecuzione
+     *
+     * @param name       nome dello stadio
+     * @param threads    thread dedicati
+     * @param processed  elementi completati con successo
+     * @param failed     elementi falliti in questo stadio
+     * @param busyNanos  tempo totale speso nell'elaborazione, sommato su tutti i thread
+     * @param wallNanos  tempo dall'avvio della pipeline alla fine dello stadio
+     */
+    record StageStats(String name, int threads, long processed, long failed, long busyNanos, long wallNanos) {
+        /**
+         * @return elementi completati al secondo, sul tempo reale dello stadio
+         */
+        double throughput() {
+            return wallNanos == 0 ? 0 : processed * 1e9 / wallNanos;
+        }
+
+        /**
+         * @return frazione del tempo disponibile ai thread effettivamente spesa a lavorare (0..1)
+         */
+        double utilization() {
+            return wallNanos == 0 ? 0 : (double) busyNanos / ((double) wallNanos * threads);
+        }
+    }
+
+    private record Stage<K>(String name, int threads, Step<K, Object, Object> step) {
+    }
+
+    private record Item<K>(K key, Object value) {
+    }
+
+    private static final Item<?> END = new Item<>(null, null);
+
+    private final int queueCapacity;
+    private final List<Stage<K>> stages = new ArrayList<>();
+    private final List<StageStats> stats = new ArrayList<>();
+
+    StagedPipeline(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    @SuppressWarnings("unchecked")
+    <I, O> StagedPipeline<K> stage(String name, int threads, Step<K, I, O> step) {
+        stages.add(new Stage<>(name, Math.max(1, threads), (Step<K, Object, Object>) step));
+        return this;
+    }
+
+    /**
+     * @return le statistiche degli stadi dell'ultima esecuzione
+     */
+    List<StageStats> stats() {
+        return List.copyOf(stats);
+    }
+
+    /**
+     * Fa passare tutti gli input per la pipeline e aspetta che l'ultimo sia uscito.
+     *
+     * @return per ogni chiave, true se l'elemento ha superato tutti gli stadi
+     */
+    Map<K, Boolean> run(List<K> inputs) throws InterruptedIOException {
+        int n = stages.size();
+        List<BlockingQueue<Item<K>>> queues = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+
+        Map<K, Boolean> results = new ConcurrentHashMap<>();
+        LongAdder[] processed = new LongAdder[n];
+        LongAdder[] failed = new LongAdder[n];
+        AtomicLong[] busy = new AtomicLong[n];
+        long[] finishedAt = new long[n];
+        int totalThreads = 0;
+        for (int i = 0; i < n; i++) {
+            processed[i] = new LongAdder();
+            failed[i] = new LongAdder();
+            busy[i] = new AtomicLong();
+            totalThreads += stages.get(i).threads();
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(totalThreads);
+        try {
+            for (int i = 0; i < n; i++) {
+                int index = i;
+                Stage<K> stage = stages.get(i);
+                AtomicInteger alive = new AtomicInteger(stage.threads());
+                for (int t = 0; t < stage.threads(); t++) {
+                    executor.execute(() -> {
+                        try {
+                            work(stage, queues.get(index), index + 1 < n ? queues.get(index + 1) : null,
+                                    results, processed[index], failed[index], busy[index]);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            // L'ultimo thread a finire chiude lo stadio successivo
+                            if (alive.decrementAndGet() == 0) {
+                                finishedAt[index] = System.nanoTime();
+                                if (index + 1 < n) {
+                                    try {
+                                        endStage(queues.get(index + 1), stages.get(index + 1).threads());
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+
+            for (K input : inputs) {
+                queues.get(0).put(new Item<>(input, input));
+            }
+            endStage(queues.get(0), stages.get(0).threads());
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        } finally {
+            executor.close();
+        }
+
+        stats.clear();
+        for (int i = 0; i < n; i++) {
+            Stage<K> stage = stages.get(i);
+            stats.add(new StageStats(stage.name(), stage.threads(), processed[i].sum(), failed[i].sum(),
+                    busy[i].get(), finishedAt[i] - start));
+        }
+        return new HashMap<>(results);
+    }
+
+    private void work(
+            Stage<K> stage,
+            BlockingQueue<Item<K>> in,
+            BlockingQueue<Item<K>> out,
+            Map<K, Boolean> results,
+            LongAdder processed,
+            LongAdder failed,
+            AtomicLong busy
+    ) throws InterruptedException {
+        while (true) {
+            Item<K> item = in.take();
+            if (item == END) {
+                return;
+            }
+
+            long begin = System.nanoTime();
+            Object value;
+            try {
+                value = stage.step().apply(item.key(), item.value());
+            } catch (Exception e) {
+                value = null;
+            }
+            busy.addAndGet(System.nanoTime() - begin);
+
+            if (value == null) {
+                failed.increment();
+                results.put(item.key(), false);
+            } else {
+                processed.increment();
+                if (out == null) {
+                    results.put(item.key(), true);
+                } else {
+                    out.put(new Item<>(item.key(), value));
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void endStage(BlockingQueue<Item<K>> queue, int threads) throws InterruptedException {
+        for (int i = 0; i < threads; i++) {
+            queue.put((Item<K>) END);
+        }
+    }
+}
@@ -1,29 +1,93 @@
 import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import static java.util.stream.Collectors.joining;
 
 /**
- * Steganography Library - BEFORE refactoring
+ * Steganography Library
  * <p>
- * Questa libreria permette di nascondere metadati JSON in immagini PNG
- * usando la tecnica LSB (Least Significant Bit).
- * PROBLEMA: le interfacce sono troppo complesse e "trapelano" dettagli implementativi.
+ * Nasconde metadati JSON nei bit meno significativi (LSB) dei pixel di immagini PNG: un header (magic number, lunghezza e CRC32C)
+ * seguito dal payload, eventualmente compresso, su un piano di bit a scelta di uno o di tutti i canali R, G e B.
  * <p>
- * Il tuo compito: riprogettare l'interfaccia per renderla semplice e intuitiva.
+ * I bit si leggono e si scrivono direttamente sul raster dell'immagine, tramite {@link ChannelAccessor}.
+ * {@link #procMeta} sceglie l'operazione (extract, embed, update, verify) dalle chiavi di una mappa e
+ * {@link #batchProc} la ripete su più file.
+ * {@code embed} ed {@code extract} lavorano su PNG già in memoria.
+ * {@link #getMeta} legge soltanto le chiavi richieste.
  */
 public class Steganography {
+    private static final int DEFAULT_MAGIC = 0x4D455441;
+    private static final String DEFAULT_ENCODING = "utf-8";
+    /**
+     * Bit alto del campo lunghezza dell'header: il payload è compresso con deflate (zlib).
+     * Le versioni che non lo conoscono calcolano {@code lunghezza * 8} in un int, dove il bit alto va perso:
+     * leggono i byte compressi come JSON, il parsing fallisce (lo stream zlib non inizia con '{') e il payload
+     * viene ignorato.
+     */
+    private static final int COMPRESSED_FLAG = 0x80000000;
+    /**
+     * Massimo dei byte ottenuti decomprimendo un payload: oltre, il payload è trattato come corrotto invece di
+     * espandersi in memoria senza limite (pochi KB di deflate possono valere GB)
+     */
+    private static final int MAX_INFLATED_BYTES = 64 << 20;
+    /**
+     * Bit 30 del campo lunghezza: header versione 2, seguito dal CRC32C del payload così come è incorporato.
+     * Gli header della versione 1 (senza CRC) restano leggibili. Chi conosce solo la versione 1 calcola
+     * {@code lunghezza * 8} in un int, dove i bit 30 e 31 vanno persi: legge il numero giusto di byte ma a partire dal
+     * CRC, cioè senza gli ultimi 4 del payload, e lo ignora solo perché il parsing del JSON fallisce.
+     */
+    private static final int HEADER_V2 = 0x40000000;
+    private static final int LENGTH_MASK = ~(COMPRESSED_FLAG | HEADER_V2);
+    /**
+     * Byte dell'header scritto: magic number, lunghezza e CRC32C
+     */
+    private static final int HEADER_BYTES = 12;
+    /**
+     * Dimensione dei pixel decodificati da cui embed e update passano in automatico alla modalità riga per riga
+     */
+    private static final long STREAMING_THRESHOLD = 512L << 20;
+    /**
+     * Dimensione del payload (in byte) da cui embed ed extract dividono l'immagine in fasce parallele
+     */
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 20;
+    /**
+     * Cache condivisa di metadati estratti, esiti di verify e (se richiesto) immagini decodificate, da 64 MB
+     * salvo {@link #setCacheLimit}
+     */
+    private static final MetaCache CACHE = new MetaCache(64L << 20);
+    /**
+     * In cache al posto di null: extract non ha trovato metadati
+     */
+    private static final Object NO_METADATA = new Object();
 
     /**
      * Parametri di configurazione opzionali per procMeta
@@ -34,6 +98,46 @@ public class Steganography {
         public String enc;
         public Integer magic;
         public Boolean raiseErr;
+        /**
+         * Livello di compressione del PNG scritto, da 0 (nessuna) a 9 (massima); default 4
+         */
+        public Integer pngLevel;
+        /**
+         * Filtro PNG: "none", "sub", "up", "average", "paeth" o "adaptive" (default)
+         */
+        public String pngFilter;
+        /**
+         * Thread per la compressione del PNG scritto (default 1)
+         */
+        public Integer pngThreads;
+        /**
+         * Se true comprime i metadati prima di incorporarli (default false); l'estrazione riconosce
+         * da sola entrambi i formati
+         */
+        public Boolean compress;
+        /**
+         * Canale usato da embed ed extract in memoria: 0 = R, 1 = G, 2 = B, -1 = tutti (default).
+         * procMeta lo prende invece da ops ("ch")
+         */
+        public Integer ch;
+        /**
+         * Embed e update riga per riga, senza tenere l'immagine in memoria: true per usarlo sempre (se il formato
+         * lo permette), false mai; null (default) solo per immagini molto grandi
+         */
+        public Boolean streaming;
+        /**
+         * Byte di payload da cui embed ed extract lavorano su fasce di righe in parallelo (default 1 MB)
+         */
+        public Integer parallelThreshold;
+        /**
+         * Se true extract e verify passano dalla cache condivisa, indicizzata per percorso, data di modifica e
+         * dimensione del file (default false). Le mappe restituite sono copie, comprese liste e mappe annidate.
+         */
+        public Boolean cache;
+        /**
+         * Se true tiene in cache anche le immagini decodificate, riusate da embed e update (default false)
+         */
+        public Boolean cacheImages;
 
         public ProcMetaConfig() {
         }
@@ -53,7 +157,7 @@ public class Steganography {
      *
      * @param p      percorso file
      * @param ops    dizionario operazioni con chiavi: 'embed', 'extract', 'verify',
-     *               'data', 'out', 'ch', 'overwrite'
+     *               'deep' (verify che controlla anche l'integrità del payload), 'data', 'out', 'ch', 'overwrite'
      * @param config configurazione (se null o campi null, usa defaults)
      * @return Dipende dall'operazione: dict con metadati, bool per successo,
      * null per errore, o stringa path
@@ -69,11 +173,17 @@ public class Steganography {
         }
         int hdrSz = config.hdrSz != null ? config.hdrSz : 32;
         int bp = config.bp != null ? config.bp : 1;
-        String enc = config.enc != null ? config.enc : "utf-8";
-        int magic = config.magic != null ? config.magic : 0x4D455441;
+        String enc = config.enc != null ? config.enc : DEFAULT_ENCODING;
+        int magic = config.magic != null ? config.magic : DEFAULT_MAGIC;
         boolean raiseErr = config.raiseErr != null ? config.raiseErr : false;
+        boolean compress = config.compress != null ? config.compress : false;
+        int parallel = config.parallelThreshold != null ? config.parallelThreshold : DEFAULT_PARALLEL_THRESHOLD;
+        boolean cacheImages = config.cacheImages != null ? config.cacheImages : false;
+        boolean cache = (config.cache != null ? config.cache : false) || cacheImages;
 
         try {
+            PngEncoder encoder = pngEncoder(config.pngLevel, config.pngFilter, config.pngThreads);
+
             if (!Files.exists(p)) {
                 if (raiseErr) {
                     throw new IOException("File not found: " + p);
@@ -87,8 +197,38 @@ public class Steganography {
                 );
             }
 
-            BufferedImage img = openImage(p);
-            if (img == null) {
+            // Extract e verify già fatti sullo stesso file non rileggono nulla
+            if (cache && isReadOnly(ops)) {
+                Object cached = readMetaCached(p, ops, hdrSz, bp, magic, enc, parallel, cacheImages);
+                if (cached == NO_METADATA) {
+                    if (raiseErr) {
+                        throw new RuntimeException("No metadata found");
+                    }
+                    return null;
+                }
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            // Extract e verify leggono solo l'inizio dell'immagine: se il formato lo permette,
+            // decodifica soltanto le righe che servono, leggendo dal file solo i loro dati compressi
+            if (isReadOnly(ops)) {
+                try (PngDecoder decoder = PngDecoder.open(p, false)) {
+                    if (decoder != null) {
+                        return readMeta(decoder.channels(), ops, hdrSz, bp, magic, enc, raiseErr, parallel);
+                    }
+                }
+            }
+
+            // Embed e update su immagini enormi: riga per riga, senza decodificare l'intera immagine
+            boolean streaming = ((Boolean) ops.getOrDefault("embed", false) || ops.containsKey("update"))
+                    && streamable(p, config.streaming);
+
+            // Niente mappatura se il risultato può finire sul file stesso (vedi openImage)
+            boolean map = !p.equals(ops.getOrDefault("out", p));
+            BufferedImage img = streaming ? null : cacheImages ? openImageCached(p, map) : openImage(p, map);
+            if (!streaming && img == null) {
                 if (raiseErr) {
                     throw new IOException("Not a valid PNG file");
                 }
@@ -103,15 +243,7 @@ public class Steganography {
 
             // Extract
             if ((Boolean) ops.getOrDefault("extract", false)) {
-                int ch = (Integer) ops.getOrDefault("ch", -1);
-                Map<String, Object> extracted = extBits(img, hdrSz, bp, ch, magic, enc);
-                if (extracted == null) {
-                    if (raiseErr) {
-                        throw new RuntimeException("No metadata found");
-                    }
-                    return null;
-                }
-                return extracted;
+                return readMeta(ChannelAccessor.of(img), ops, hdrSz, bp, magic, enc, raiseErr, parallel);
             }
 
             // Embed
@@ -130,15 +262,18 @@ public class Steganography {
                 Map<String, Object> metaData = (Map<String, Object>) ops.get("data");
                 int ch = (Integer) ops.getOrDefault("ch", -1);
 
-                BufferedImage modifiedImg = embBits(img, metaData, hdrSz, bp, ch, magic, enc);
-
                 Path outputPath = (Path) ops.getOrDefault("out", p);
                 if (!((Boolean) ops.getOrDefault("overwrite", false)) && outputPath.equals(p)) {
                     String[] baseExt = splitNameExtension(p.getFileName());
                     outputPath = outputPath.resolveSibling(baseExt[0] + "_embedded" + baseExt[1]);
                 }
 
-                ImageIO.write(modifiedImg, "PNG", outputPath.toFile());
+                if (streaming) {
+                    embedStreaming(p, outputPath, buildPayload(metaData, magic, enc, compress), bp, ch, encoder);
+                } else {
+                    CopyOnWriteImage modifiedImg = embBits(img, metaData, hdrSz, bp, ch, magic, enc, compress, parallel);
+                    writePng(encoder, modifiedImg, p, outputPath);
+                }
 
                 if (ops.containsKey("verify") && (Boolean) ops.get("verify")) {
                     return outputPath;
@@ -156,20 +291,21 @@ public class Steganography {
             // Update (extract + modify + embed)
             if (ops.containsKey("update")) {
                 int ch = (Integer) ops.getOrDefault("ch", -1);
-                Map<String, Object> existing = extBits(img, hdrSz, bp, ch, magic, enc);
-
-                if (existing == null) {
-                    existing = new HashMap<>();
-                }
-
                 @SuppressWarnings("unchecked")
                 Map<String, Object> updateData = (Map<String, Object>) ops.get("update");
-                existing.putAll(updateData);
-
-                BufferedImage modifiedImg = embBits(img, existing, hdrSz, bp, ch, magic, enc);
-
                 Path outputPath = (Path) ops.getOrDefault("out", p);
-                ImageIO.write(modifiedImg, "PNG", outputPath.toFile());
+
+                if (streaming) {
+                    Map<String, Object> existing;
+                    try (PngDecoder decoder = PngDecoder.open(p, false)) {
+                        existing = mergeUpdate(decoder.channels(), updateData, hdrSz, bp, ch, magic, enc, parallel);
+                    }
+                    embedStreaming(p, outputPath, buildPayload(existing, magic, enc, compress), bp, ch, encoder);
+                } else {
+                    Map<String, Object> existing = mergeUpdate(ChannelAccessor.of(img), updateData, hdrSz, bp, ch, magic, enc, parallel);
+                    CopyOnWriteImage modifiedImg = embBits(img, existing, hdrSz, bp, ch, magic, enc, compress, parallel);
+                    writePng(encoder, modifiedImg, p, outputPath);
+                }
 
                 Map<String, Object> result = new HashMap<>();
                 result.put("success", true);
@@ -179,9 +315,7 @@ public class Steganography {
 
             // Verify
             if ((Boolean) ops.getOrDefault("verify", false)) {
-                int ch = (Integer) ops.getOrDefault("ch", -1);
-                boolean hasMeta = checkMeta(img, hdrSz, bp, ch, magic);
-                return hasMeta;
+                return readMeta(ChannelAccessor.of(img), ops, hdrSz, bp, magic, enc, raiseErr, parallel);
             }
 
             Map<String, Object> result = new HashMap<>();
@@ -205,17 +339,261 @@ public class Steganography {
         }
     }
 
-    private static BufferedImage openImage(Path filePath) throws IOException {
-        BufferedImage img = ImageIO.read(filePath.toFile());
+    /**
+     * Metadati già presenti nell'immagine (se ce ne sono) aggiornati con {@code updateData}
+     */
+    private static Map<String, Object> mergeUpdate(
+            ChannelAccessor pixels,
+            Map<String, Object> updateData,
+            int hdrSz,
+            int bp,
+            int ch,
+            int magic,
+            String enc,
+            int parallelThreshold
+    ) {
+        Map<String, Object> existing = extBits(pixels, hdrSz, bp, ch, magic, enc, parallelThreshold);
+
+        if (existing == null) {
+            existing = new HashMap<>();
+        }
+
+        existing.putAll(updateData);
+        return existing;
+    }
+
+    /**
+     * @return true se le operazioni richieste si limitano a leggere (extract o verify)
+     */
+    private static boolean isReadOnly(Map<String, Object> ops) {
+        if ((Boolean) ops.getOrDefault("extract", false)) {
+            return true;
+        }
+        return !((Boolean) ops.getOrDefault("embed", false))
+                && !ops.containsKey("update")
+                && (Boolean) ops.getOrDefault("verify", false);
+    }
+
+    /**
+     * Esegue extract (se richiesto) oppure verify sui pixel dati
+     */
+    private static Object readMeta(
+            ChannelAccessor pixels,
+            Map<String, Object> ops,
+            int hdrSz,
+            int bp,
+            int magic,
+            String enc,
+            boolean raiseErr,
+            int parallelThreshold
+    ) {
+        int ch = (Integer) ops.getOrDefault("ch", -1);
+        if ((Boolean) ops.getOrDefault("extract", false)) {
+            Map<String, Object> extracted = extBits(pixels, hdrSz, bp, ch, magic, enc, parallelThreshold);
+            if (extracted == null) {
+                if (raiseErr) {
+                    throw new RuntimeException("No metadata found");
+                }
+                return null;
+            }
+            return extracted;
+        }
+        if ((Boolean) ops.getOrDefault("deep", false)) {
+            return deepCheckMeta(pixels, hdrSz, bp, ch, magic, enc, parallelThreshold);
+        }
+        return checkMeta(pixels, hdrSz, bp, ch, magic);
+    }
+
+    /**
+     * Cosa si è ricavato da un file in cache: l'operazione (extract, verify o verify profondo) e i suoi parametri
+     */
+    private record ReadKey(String op, int bitPlane, int channel, int magic, String encoding) {
+    }
+
+    /**
+     * Extract o verify attraverso {@link #CACHE}
+     *
+     * @return come {@link #readMeta} senza raiseErr, ma {@link #NO_METADATA} se extract non trova metadati e null
+     * se il file non si riesce a leggere come immagine
+     */
+    private static Object readMetaCached(
+            Path p,
+            Map<String, Object> ops,
+            int hdrSz,
+            int bp,
+            int magic,
+            String enc,
+            int parallel,
+            boolean cacheImages
+    ) throws IOException {
+        int ch = (Integer) ops.getOrDefault("ch", -1);
+        String op = (Boolean) ops.getOrDefault("extract", false) ? "extract"
+                : (Boolean) ops.getOrDefault("deep", false) ? "deep" : "verify";
+        MetaCache.Key key = MetaCache.key(p, new ReadKey(op, bp, ch, magic, enc));
+
+        Object result = CACHE.get(key);
+        if (result == null) {
+            if (cacheImages) {
+                BufferedImage img = openImageCached(p, true);
+                if (img == null) {
+                    return null;
+                }
+                result = readMeta(ChannelAccessor.of(img), ops, hdrSz, bp, magic, enc, false, parallel);
+            } else {
+                try (PngDecoder decoder = PngDecoder.open(p)) {
+                    if (decoder != null) {
+                        result = readMeta(decoder.channels(), ops, hdrSz, bp, magic, enc, false, parallel);
+                    } else {
+                        BufferedImage img = openImage(p, true);
+                        if (img == null) {
+                            return null;
+                        }
+                        result = readMeta(ChannelAccessor.of(img), ops, hdrSz, bp, magic, enc, false, parallel);
+                    }
+                }
+            }
+            if (result == null) {
+                result = NO_METADATA;
+            }
+            // Stima: i metadati pesano più o meno quanto il loro JSON in caratteri, il resto poco
+            long weight = 64 + (result instanceof Map<?, ?> map ? 2L * JSONWriter.local().writeObject(map).length() : 0);
+            CACHE.put(key, result, weight);
+        }
+
+        return deepCopy(result);
+    }
+
+    /**
+     * Copia mappe e liste a ogni livello, così che chi modifica il risultato non tocchi il valore in cache;
+     * stringhe, numeri e booleani sono immutabili e restano condivisi
+     */
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> copy = new HashMap<>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                copy.put((String) entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List<?> list) {
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object element : list) {
+                copy.add(deepCopy(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Come {@link #openImage(Path, boolean)}, passando da {@link #CACHE}. L'immagine è condivisa: va solo letta
+     * (embBits la copia riga per riga prima di modificarla).
+     */
+    private static BufferedImage openImageCached(Path p, boolean map) throws IOException {
+        MetaCache.Key key = MetaCache.key(p, BufferedImage.class);
+        BufferedImage img = (BufferedImage) CACHE.get(key);
+        if (img == null) {
+            img = openImage(p, map);
+            if (img != null) {
+                DataBuffer buffer = img.getRaster().getDataBuffer();
+                long weight = (long) buffer.getSize() * buffer.getNumBanks()
+                        * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+                CACHE.put(key, img, weight);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Statistiche della cache condivisa usata con {@link ProcMetaConfig#cache}
+     */
+    public static class CacheStats {
+        public final long hits;
+        public final long misses;
+        /**
+         * Voci scartate per far posto a quelle nuove
+         */
+        public final long evictions;
+        public final int entries;
+        /**
+         * Byte occupati (stimati) e limite
+         */
+        public final long bytes;
+        public final long maxBytes;
+
+        CacheStats(long hits, long misses, long evictions, int entries, long bytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * @return contatori e occupazione della cache condivisa
+     */
+    public static CacheStats cacheStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Imposta il limite in byte della cache condivisa (default 64 MB), scartando subito ciò che non ci sta più
+     */
+    public static void setCacheLimit(long maxBytes) {
+        CACHE.maxBytes(maxBytes);
+    }
+
+    /**
+     * Svuota la cache condivisa (i contatori restano)
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Con {@code map} i file grandi vengono mappati invece di finire sullo heap: va evitato se il file può essere
+     * riscritto, perché su Windows un file mappato non si sovrascrive finché il GC non rilascia la mappatura
+     */
+    private static BufferedImage openImage(Path filePath, boolean map) throws IOException {
+        // I PNG gestiti dal decoder interno saltano ImageIO
+        try (PngDecoder decoder = PngDecoder.open(filePath, map)) {
+            if (decoder != null) {
+                return decoder.readImage();
+            }
+        }
+        return nativeOrRgb(ImageIO.read(filePath.toFile()));
+    }
+
+    private static BufferedImage openImage(ByteBuffer png) throws IOException {
+        try (PngDecoder decoder = PngDecoder.open(png)) {
+            if (decoder != null) {
+                return decoder.readImage();
+            }
+        }
+        return openImage(inputStream(png));
+    }
+
+    private static BufferedImage openImage(InputStream in) throws IOException {
+        // ImageIO.read(InputStream) può appoggiare lo stream a un file temporaneo: meglio tenerlo in memoria
+        return nativeOrRgb(ImageIO.read(new MemoryCacheImageInputStream(in)));
+    }
+
+    private static BufferedImage nativeOrRgb(BufferedImage img) {
         if (img == null) {
             return null;
         }
 
-        // Convert to RGB if needed
-        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+        // Mantiene i layout RGB/RGBA accessibili direttamente (compresi alfa e campioni a 16 bit),
+        // converte tutto il resto (grigi, palette, ...) in RGB
+        if (ChannelAccessor.direct(img) != null) {
             return img;
         }
+        return toRgb(img);
+    }
 
+    private static BufferedImage toRgb(BufferedImage img) {
         BufferedImage rgbImg = new BufferedImage(
                 img.getWidth(),
                 img.getHeight(),
@@ -225,6 +603,35 @@ public class Steganography {
         return rgbImg;
     }
 
+    private static PngEncoder pngEncoder(Integer level, String filter, Integer threads) {
+        return new PngEncoder(
+                level != null ? level : PngEncoder.DEFAULT_LEVEL,
+                filter != null ? PngEncoder.Filter.parse(filter) : PngEncoder.DEFAULT_FILTER,
+                threads != null ? threads : 1
+        );
+    }
+
+    /**
+     * Scrive l'immagine modificata in {@code outputPath}; se nessun pixel è cambiato rispetto a {@code source}
+     * (ad esempio un update che rimette gli stessi valori) copia il file invece di ricodificarlo
+     */
+    private static void writePng(PngEncoder encoder, CopyOnWriteImage img, Path source, Path outputPath)
+            throws IOException {
+        try {
+            if (!img.modified() && PngDecoder.readHeader(source) != null) {
+                if (!Files.exists(outputPath) || !Files.isSameFile(source, outputPath)) {
+                    Files.copy(source, outputPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return;
+            }
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputPath))) {
+                encoder.encode(img.rows(), out);
+            }
+        } finally {
+            CACHE.invalidate(outputPath);
+        }
+    }
+
     private static String[] splitNameExtension(Path fileNamePath) {
         String fileName = fileNamePath.toString();
         int dotIdx = fileName.lastIndexOf('.');
@@ -236,84 +643,212 @@ public class Steganography {
     /**
      * Nasconde metadati JSON nei bit meno significativi dell'immagine
      */
-    private static BufferedImage embBits(
+    private static CopyOnWriteImage embBits(
             BufferedImage img,
             Map<String, Object> metadata,
             int headerSize,
             int bitPlane,
             int channel,
             int magicNum,
-            String encoding
+            String encoding,
+            boolean compress,
+            int parallelThreshold
     ) {
-        String jsonStr = toJson(metadata);
-        byte[] jsonBytes = jsonStr.getBytes(Charset.forName(encoding));
+        byte[] fullPayload = buildPayload(metadata, magicNum, encoding, compress);
+        int payloadLen = fullPayload.length - HEADER_BYTES;
+        BitCursor bits = BitCursor.over(fullPayload);
 
-        // Crea header: magic number (4 bytes) + lunghezza (4 bytes)
-        int payloadLen = jsonBytes.length;
-        byte[] header = new byte[8];
+        // Vengono copiate solo le righe raggiunte dal payload; l'immagine originale resta intatta
+        CopyOnWriteImage modified = new CopyOnWriteImage(ChannelAccessor.direct(img) != null ? img : toRgb(img));
 
-        // Magic number (4 bytes, big-endian)
-        System.arraycopy(intToBytes(magicNum), 0, header, 0, 4);
-        // Payload length (4 bytes, big-endian)
-        System.arraycopy(intToBytes(payloadLen), 0, header, 4, 4);
+        if (channel != -1) {
+            Objects.checkIndex(channel, 3);
+        }
+        checkBitPlane(modified, bitPlane);
+
+        // Un payload troncato non si potrebbe più estrarre: meglio rifiutarlo
+        if (bits.limit() > capacityBits(modified, channel)) {
+            throw payloadTooLarge(payloadLen, modified.width(), modified.height(), channel);
+        }
 
-        byte[] fullPayload = new byte[header.length + jsonBytes.length];
-        System.arraycopy(header, 0, fullPayload, 0, header.length);
-        System.arraycopy(jsonBytes, 0, fullPayload, header.length, jsonBytes.length);
+        // Tocca solo i bit che cambiano: riscrivere gli stessi metadati (o cambiarne un campo)
+        // copia poche righe, o nessuna
+        RowBands.writeBits(modified, channel, bitPlane - 1, bits, parallelThreshold);
 
-        // Converti in lista di bit
-        List<Integer> bits = new ArrayList<>();
-        for (byte b : fullPayload) {
-            for (int i = 7; i >= 0; i--) {
-                bits.add((b >> i) & 1);
-            }
+        return modified;
+    }
+
+    /**
+     * @throws IllegalArgumentException se {@code bitPlane} (1-based) non è tra i bit dei campioni dell'immagine
+     */
+    private static void checkBitPlane(ChannelAccessor pixels, int bitPlane) {
+        if (bitPlane < 1 || bitPlane > pixels.sampleBits()) {
+            throw new IllegalArgumentException("Invalid bit plane: " + bitPlane);
         }
+    }
 
-        // Create a copy to modify
-        BufferedImage modified = new BufferedImage(
-                img.getWidth(),
-                img.getHeight(),
-                BufferedImage.TYPE_INT_RGB
-        );
-        modified.getGraphics().drawImage(img, 0, 0, null);
+    private static IllegalArgumentException payloadTooLarge(int payloadLen, int width, int height, int channel) {
+        return new IllegalArgumentException("Metadata too large for image: " + payloadLen + " bytes, capacity "
+                + payloadCapacity(width, height, channel) + " bytes");
+    }
 
-        int width = modified.getWidth();
-        int height = modified.getHeight();
-        int bitIdx = 0;
+    /**
+     * @return true se embed e update vanno fatti riga per riga con {@link #embedStreaming}: sempre se richiesto,
+     * in automatico per immagini che decodificate occuperebbero almeno {@link #STREAMING_THRESHOLD} byte;
+     * in entrambi i casi solo per i PNG che {@link PngDecoder} sa leggere
+     */
+    private static boolean streamable(Path p, Boolean streaming) throws IOException {
+        if (Boolean.FALSE.equals(streaming)) {
+            return false;
+        }
+        PngDecoder.Header header = PngDecoder.readHeader(p);
+        if (header == null) {
+            return false;
+        }
+        if (streaming == null && (long) header.width() * header.height() * 4 < STREAMING_THRESHOLD) {
+            return false;
+        }
+        return PngDecoder.decodable(p);
+    }
 
-        // Define a bit-mask to force the steganographic data bit to 0
-        int dataBit = bitPlane - 1;
-        int mask = ~(1 << dataBit);
+    /**
+     * Incorpora {@code payload} leggendo, modificando e scrivendo un'immagine una riga alla volta
+     */
+    private static void embedStreaming(
+            Path p,
+            Path outputPath,
+            byte[] payload,
+            int bitPlane,
+            int channel,
+            PngEncoder encoder
+    ) throws IOException {
+        // La sorgente si legge mentre si scrive l'output: se è lo stesso file, scrive accanto e poi sostituisce
+        boolean inPlace = Files.exists(outputPath) && Files.isSameFile(p, outputPath);
+        Path target = inPlace
+                ? Files.createTempFile(outputPath.toAbsolutePath().getParent(), "stego", ".png")
+                : outputPath;
+        // Senza mappare la sorgente: su Windows un file mappato non si può sostituire con Files.move
+        try (PngDecoder decoder = PngDecoder.open(p, false)) {
+            if (decoder == null) {
+                throw new IOException("Not a valid PNG file");
+            }
+            if (channel != -1) {
+                Objects.checkIndex(channel, 3);
+            }
+            int sampleBits = decoder.isRgb() ? decoder.bitDepth() : 8;
+            if (bitPlane < 1 || bitPlane > sampleBits) {
+                throw new IllegalArgumentException("Invalid bit plane: " + bitPlane);
+            }
+            long capacity = (long) decoder.width() * decoder.height() * (channel == -1 ? 3 : 1);
+            if (payload.length * 8L > capacity) {
+                throw payloadTooLarge(payload.length - HEADER_BYTES, decoder.width(), decoder.height(), channel);
+            }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (bitIdx >= bits.size()) {
-                    break;
-                }
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+                encoder.encode(new StreamingEmbed(decoder, payload, bitPlane - 1, channel), out);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (inPlace) {
+                Files.deleteIfExists(target);
+            }
+            throw e;
+        }
+        if (inPlace) {
+            Files.move(target, outputPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        CACHE.invalidate(outputPath);
+    }
 
-                byte[] pixel = readPixel(modified, x, y);
+    /**
+     * Header (magic number, lunghezza e CRC32C) seguito dai metadati serializzati, eventualmente compressi
+     */
+    private static byte[] buildPayload(Map<String, Object> metadata, int magicNum, String encoding, boolean compress) {
+        // Il JSON va subito dopo lo spazio per l'header, nel buffer riutilizzabile del thread
+        JSONWriter json = JSONWriter.local();
+        json.reset(HEADER_BYTES);
+        Charset charset = Charset.forName(encoding);
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            json.writeObject(metadata);
+        } else {
+            json.writeRaw(toJson(metadata).getBytes(charset));
+        }
+        byte[] data = json.buffer();
+        int offset = HEADER_BYTES;
+        int payloadLen = json.length() - HEADER_BYTES;
+
+        // Compresso solo se risparmia davvero dei bit (con deflate i payload minuscoli crescono)
+        boolean compressed = false;
+        if (compress) {
+            byte[] deflated = deflate(data, offset, payloadLen);
+            if (deflated.length < payloadLen) {
+                data = deflated;
+                offset = 0;
+                payloadLen = deflated.length;
+                compressed = true;
+            }
+        }
 
-                // Embed in specific channel or all channels
-                if (channel == -1) {
-                    // All channels
-                    for (int c = 0; c < 3; c++) {
-                        if (bitIdx >= bits.size()) {
-                            break;
-                        }
-                        pixel[c] = (byte) ((pixel[c] & mask) | (bits.get(bitIdx) << dataBit));
-                        bitIdx++;
-                    }
-                } else {
-                    // Specific channel
-                    pixel[channel] = (byte) ((pixel[channel] & mask) | (bits.get(bitIdx) << dataBit));
-                    bitIdx++;
-                }
+        // Crea header: magic number (4 bytes) + lunghezza (4 bytes) + CRC32C (4 bytes)
+        byte[] fullPayload = new byte[HEADER_BYTES + payloadLen];
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, payloadLen);
 
-                writePixel(modified, x, y, pixel);
+        // Magic number (4 bytes, big-endian)
+        System.arraycopy(intToBytes(magicNum), 0, fullPayload, 0, 4);
+        // Lunghezza del payload (4 byte, big-endian), bit alto se compresso, bit 30 per l'header con checksum
+        int lengthField = HEADER_V2 | (compressed ? payloadLen | COMPRESSED_FLAG : payloadLen);
+        System.arraycopy(intToBytes(lengthField), 0, fullPayload, 4, 4);
+        // Checksum dei byte incorporati (4 byte, big-endian)
+        System.arraycopy(intToBytes((int) crc.getValue()), 0, fullPayload, 8, 4);
+
+        System.arraycopy(data, offset, fullPayload, HEADER_BYTES, payloadLen);
+        return fullPayload;
+    }
+
+    private static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
             }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
         }
+    }
 
-        return modified;
+    /**
+     * @return i dati decompressi, oppure {@code null} se lo stream è corrotto, incompleto o supera
+     * {@link #MAX_INFLATED_BYTES}
+     */
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(4L * length, MAX_INFLATED_BYTES));
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                if (out.size() + n > MAX_INFLATED_BYTES) {
+                    return null;
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
     }
 
     private static byte[] intToBytes(int i) {
@@ -332,119 +867,369 @@ public class Steganography {
         return buffer.getInt();
     }
 
-    private static byte[] readPixel(BufferedImage image, int x, int y) {
-        int rgb = image.getRGB(x, y);
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(rgb);
-        return Arrays.copyOfRange(buffer.array(), 1, 4); // ritaglia il canale alfa
-    }
-
-    private static void writePixel(BufferedImage image, int x, int y, byte[] pixel) {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.put((byte) 0xFF); // aggiungi il canale alfa
-        buffer.put(pixel);
-        buffer.flip();
-
-        int rgb = buffer.getInt();
-        image.setRGB(x, y, rgb);
+    /**
+     * Payload letto dai pixel, così come è incorporato: {@code length} byte da {@code offset}, eventualmente
+     * compressi. Con {@code checksummed} il CRC32C dell'header è già stato verificato.
+     */
+    private record RawPayload(byte[] bytes, int offset, int length, boolean compressed, boolean checksummed) {
     }
 
     /**
-     * Estrae metadati JSON nascosti nell'immagine
+     * Legge header e payload senza interpretarli
+     *
+     * @return il payload, oppure null se manca, non ci sta nell'immagine o non corrisponde al suo CRC32C
      */
-    private static Map<String, Object> extBits(
-            BufferedImage img,
+    private static RawPayload readPayload(
+            ChannelAccessor pixels,
             int headerSize,
             int bitPlane,
             int channel,
             int magicNum,
-            String encoding
+            int parallelThreshold
     ) {
-        List<Integer> bits = readBits(img, headerSize, bitPlane, channel, -1);
+        checkBitPlane(pixels, bitPlane);
 
-        // Decode header (8 bytes = 64 bits)
-        byte[] headerBytes = bitsToBytes(bits.subList(0, Math.min(64, bits.size())));
-
-        if (headerBytes.length < 4) {
+        // Decodifica magic e lunghezza (8 byte = 64 bit) prima di toccare il resto dell'immagine
+        BitCursor header = readBits(pixels, headerSize, bitPlane, channel, 0, 64, parallelThreshold);
+        if (header.limit() < 64) {
             return null;
         }
 
+        byte[] headerBytes = header.bytes(0, 64);
         int foundMagic = bytesToInt(headerBytes);
         if (foundMagic != magicNum) {
             return null;
         }
 
-        // Extract payload
-        if (headerBytes.length < 8) {
+        // Una lunghezza che non sta nell'immagine vuol dire che non c'è un payload (integro)
+        int lengthField = bytesToInt(headerBytes, 4);
+        boolean compressed = (lengthField & COMPRESSED_FLAG) != 0;
+        boolean checksummed = (lengthField & HEADER_V2) != 0;
+        int payloadLen = lengthField & LENGTH_MASK;
+        int crcBytes = checksummed ? 4 : 0;
+        if (64 + (crcBytes + (long) payloadLen) * 8 > capacityBits(pixels, channel)) {
             return null;
         }
 
-        int payloadLen = bytesToInt(headerBytes, 4);
+        // Estrae esattamente il checksum e il payload, niente di più
+        BitCursor payload = readBits(pixels, headerSize, bitPlane, channel, 64, (crcBytes + payloadLen) * 8,
+                parallelThreshold);
+        byte[] bytes = payload.bytes(0, payload.limit());
+        if (checksummed) {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, crcBytes, payloadLen);
+            if ((int) crc.getValue() != bytesToInt(bytes)) {
+                return null;
+            }
+        }
+        return new RawPayload(bytes, crcBytes, payloadLen, compressed, checksummed);
+    }
+
+    /**
+     * Estrae metadati JSON nascosti nell'immagine
+     */
+    private static Map<String, Object> extBits(
+            ChannelAccessor pixels,
+            int headerSize,
+            int bitPlane,
+            int channel,
+            int magicNum,
+            String encoding,
+            int parallelThreshold
+    ) {
+        return extBits(pixels, headerSize, bitPlane, channel, magicNum, encoding, parallelThreshold, null);
+    }
+
+    /**
+     * Estrae dai metadati JSON nascosti nell'immagine le sole chiavi {@code keys} (null = tutte), senza costruire
+     * i valori delle altre
+     */
+    private static Map<String, Object> extBits(
+            ChannelAccessor pixels,
+            int headerSize,
+            int bitPlane,
+            int channel,
+            int magicNum,
+            String encoding,
+            int parallelThreshold,
+            List<String> keys
+    ) {
+        // Un payload con il checksum sbagliato non viene né decompresso né analizzato
+        RawPayload payload = readPayload(pixels, headerSize, bitPlane, channel, magicNum, parallelThreshold);
+        if (payload == null) {
+            return null;
+        }
 
-        int neededBits = payloadLen * 8;
-        int endIdx = Math.min(64 + neededBits, bits.size());
-        byte[] payloadBytes = bitsToBytes(bits.subList(64, endIdx));
+        byte[] bytes = payload.bytes();
+        int offset = payload.offset();
+        int length = payload.length();
+        if (payload.compressed()) {
+            bytes = inflate(bytes, offset, length);
+            if (bytes == null) {
+                return null;
+            }
+            offset = 0;
+            length = bytes.length;
+        }
 
         try {
-            String jsonStr = new String(payloadBytes, Charset.forName(encoding));
-            return fromJson(jsonStr);
+            Charset charset = Charset.forName(encoding);
+            if (!charset.equals(StandardCharsets.UTF_8)) {
+                bytes = new String(bytes, offset, length, charset).getBytes(StandardCharsets.UTF_8);
+                offset = 0;
+                length = bytes.length;
+            }
+            if (keys == null) {
+                return fromJson(bytes, offset, length);
+            }
+            return JSONIndex.of(bytes, offset, length).get(keys);
         } catch (Exception e) {
             return null;
         }
     }
 
-    private static List<Integer> readBits(
-            BufferedImage img,
+    /**
+     * Legge {@code bitn} bit a partire dal bit {@code fromBit}, fermandosi prima se l'immagine finisce; in parallelo
+     * da {@code parallelThreshold} byte in su
+     */
+    private static BitCursor readBits(
+            ChannelAccessor pixels,
             int headerSize,
             int bitPlane,
             int channel,
-            int bitn
+            int fromBit,
+            int bitn,
+            int parallelThreshold
     ) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-
-        List<Integer> bits = new ArrayList<>();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (bitn >= 0 && bits.size() >= bitn) {
-                    break;
-                }
+        if (channel != -1) {
+            Objects.checkIndex(channel, 3);
+        }
 
-                byte[] pixel = readPixel(img, x, y);
+        long available = Math.max(0, capacityBits(pixels, channel) - fromBit);
+        BitCursor bits = BitCursor.allocate((int) Math.min(bitn, available));
+        RowBands.readBits(pixels, fromBit, channel, bitPlane - 1, bits, parallelThreshold);
+        return bits;
+    }
 
-                if (channel == -1) {
-                    // Extract from all channels
-                    for (int c = 0; c < 3; c++) {
-                        if (bitn >= 0 && bits.size() >= bitn) {
-                            break;
-                        }
-                        int bit = (pixel[c] >> (bitPlane - 1)) & 1;
-                        bits.add(bit);
-                    }
-                } else {
-                    // Extract from specific channel
-                    int bit = (pixel[channel] >> (bitPlane - 1)) & 1;
-                    bits.add(bit);
-                }
+    /**
+     * Numero di bit che l'immagine può ospitare sul canale indicato (-1 = tutti i canali)
+     */
+    private static long capacityBits(ChannelAccessor pixels, int channel) {
+        return (long) pixels.width() * pixels.height() * (channel == -1 ? 3 : 1);
+    }
+
+    /**
+     * Byte di metadati (JSON codificato) che si possono incorporare in un'immagine con il canale indicato,
+     * tolto l'header
+     */
+    private static long payloadCapacity(int width, int height, int channel) {
+        long bits = (long) width * height * (channel == -1 ? 3 : 1);
+        return Math.max(0, (bits - HEADER_BYTES * 8) / 8);
+    }
+
+    /**
+     * Calcola quanti byte di metadati si possono incorporare in un PNG leggendone solo l'header (IHDR),
+     * senza decodificare l'immagine.
+     *
+     * @param p        percorso immagine
+     * @param channel  canale (0 = R, 1 = G, 2 = B, null o -1 = tutti)
+     * @param bitPlane piano di bit (null = 1); oltre la profondità dei campioni la capacità è 0
+     * @return capacità in byte del JSON codificato, oppure -1 se il file non è un PNG
+     */
+    public static long capacity(Path p, Integer channel, Integer bitPlane) throws IOException {
+        int ch = channel != null ? channel : -1;
+        int bp = bitPlane != null ? bitPlane : 1;
+        if (ch != -1) {
+            Objects.checkIndex(ch, 3);
+        }
+
+        PngDecoder.Header header = PngDecoder.readHeader(p);
+        if (header == null) {
+            return -1;
+        }
+        // RGB e RGBA mantengono i campioni nativi, il resto viene convertito in RGB a 8 bit
+        boolean nativeSamples = header.colorType() == PngDecoder.COLOR_RGB || header.colorType() == PngDecoder.COLOR_RGBA;
+        int sampleBits = nativeSamples ? header.bitDepth() : 8;
+        if (bp < 1 || bp > sampleBits) {
+            return 0;
+        }
+        return payloadCapacity(header.width(), header.height(), ch);
+    }
+
+    /**
+     * @return false solo se l'header del PNG dice con certezza che {@code payloadBytes} non ci stanno
+     */
+    private static boolean fits(Path p, long payloadBytes, int channel, int bitPlane) {
+        try {
+            long capacity = capacity(p, channel, bitPlane);
+            return capacity < 0 || payloadBytes <= capacity;
+        } catch (IOException | RuntimeException e) {
+            // Lascia a chi decodifica il compito di segnalare l'errore
+            return true;
+        }
+    }
+
+    /**
+     * @return la dimensione in byte dei metadati da incorporare, oppure -1 se le operazioni non sono un embed
+     * (per update la dimensione dipende dai metadati già presenti)
+     */
+    private static long embedPayloadSize(Map<String, Object> ops, boolean compress) {
+        if (!(Boolean) ops.getOrDefault("embed", false) || !(ops.get("data") instanceof Map<?, ?>)) {
+            return -1;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = (Map<String, Object>) ops.get("data");
+        JSONWriter json = JSONWriter.local().writeObject(data);
+        int length = json.length();
+        return compress ? Math.min(length, deflate(json.buffer(), 0, length).length) : length;
+    }
+
+    /**
+     * Incorpora metadati in un PNG già in memoria, senza passare dal filesystem.
+     *
+     * @param png    il PNG (o un'altra immagine leggibile da ImageIO)
+     * @param data   metadati da incorporare
+     * @param config configurazione (se null o campi null, usa defaults)
+     * @return il PNG con i metadati, tra position e limit del buffer
+     * @throws IOException              se i byte non sono un'immagine valida
+     * @throws IllegalArgumentException se i metadati non ci stanno nell'immagine
+     */
+    public static ByteBuffer embed(byte[] png, Map<String, Object> data, ProcMetaConfig config) throws IOException {
+        return embed(ByteBuffer.wrap(png), data, config);
+    }
+
+    /**
+     * Come {@link #embed(byte[], Map, ProcMetaConfig)}, leggendo il PNG tra position e limit di {@code png}
+     * (che non vengono modificati)
+     */
+    public static ByteBuffer embed(ByteBuffer png, Map<String, Object> data, ProcMetaConfig config)
+            throws IOException {
+        BufferOutputStream out = new BufferOutputStream(png.remaining() + 1024);
+        embed(png, data, out, config);
+        return out.toByteBuffer();
+    }
+
+    /**
+     * Come {@link #embed(ByteBuffer, Map, ProcMetaConfig)}, scrivendo il risultato su {@code out} (che non viene
+     * chiuso)
+     */
+    public static void embed(ByteBuffer png, Map<String, Object> data, OutputStream out, ProcMetaConfig config)
+            throws IOException {
+        embed(openImage(png), data, out, config);
+    }
+
+    /**
+     * Come {@link #embed(byte[], Map, ProcMetaConfig)}, leggendo il PNG da {@code in} e scrivendo il risultato
+     * su {@code out}. Nessuno dei due stream viene chiuso.
+     */
+    public static void embed(InputStream in, Map<String, Object> data, OutputStream out, ProcMetaConfig config)
+            throws IOException {
+        embed(openImage(in), data, out, config);
+    }
+
+    private static void embed(BufferedImage img, Map<String, Object> data, OutputStream out, ProcMetaConfig config)
+            throws IOException {
+        // Apply defaults
+        if (config == null) {
+            config = new ProcMetaConfig();
+        }
+        int hdrSz = config.hdrSz != null ? config.hdrSz : 32;
+        int bp = config.bp != null ? config.bp : 1;
+        String enc = config.enc != null ? config.enc : DEFAULT_ENCODING;
+        int magic = config.magic != null ? config.magic : DEFAULT_MAGIC;
+        boolean compress = config.compress != null ? config.compress : false;
+        int ch = config.ch != null ? config.ch : -1;
+        int parallel = config.parallelThreshold != null ? config.parallelThreshold : DEFAULT_PARALLEL_THRESHOLD;
+        PngEncoder encoder = pngEncoder(config.pngLevel, config.pngFilter, config.pngThreads);
+
+        if (img == null) {
+            throw new IOException("Not a valid PNG file");
+        }
+        CopyOnWriteImage modified = embBits(img, data, hdrSz, bp, ch, magic, enc, compress, parallel);
+        encoder.encode(modified.rows(), out);
+    }
+
+    /**
+     * Estrae i metadati da un PNG già in memoria, senza passare dal filesystem.
+     *
+     * @param png    il PNG (o un'altra immagine leggibile da ImageIO)
+     * @param config configurazione (se null o campi null, usa defaults)
+     * @return i metadati, oppure null se l'immagine non ne contiene
+     * @throws IOException se i byte non sono un'immagine valida
+     */
+    public static Map<String, Object> extract(byte[] png, ProcMetaConfig config) throws IOException {
+        return extract(ByteBuffer.wrap(png), config);
+    }
+
+    /**
+     * Come {@link #extract(byte[], ProcMetaConfig)}, leggendo il PNG tra position e limit di {@code png}
+     * (che non vengono modificati)
+     */
+    public static Map<String, Object> extract(ByteBuffer png, ProcMetaConfig config) throws IOException {
+        // Apply defaults
+        if (config == null) {
+            config = new ProcMetaConfig();
+        }
+        int hdrSz = config.hdrSz != null ? config.hdrSz : 32;
+        int bp = config.bp != null ? config.bp : 1;
+        String enc = config.enc != null ? config.enc : DEFAULT_ENCODING;
+        int magic = config.magic != null ? config.magic : DEFAULT_MAGIC;
+        int ch = config.ch != null ? config.ch : -1;
+        int parallel = config.parallelThreshold != null ? config.parallelThreshold : DEFAULT_PARALLEL_THRESHOLD;
+
+        // Come procMeta: se il formato lo permette, decodifica solo le righe che contengono il payload
+        try (PngDecoder decoder = PngDecoder.open(png)) {
+            if (decoder != null) {
+                return extBits(decoder.channels(), hdrSz, bp, ch, magic, enc, parallel);
             }
         }
-        return bits;
+
+        BufferedImage img = openImage(inputStream(png));
+        if (img == null) {
+            throw new IOException("Not a valid PNG file");
+        }
+        return extBits(ChannelAccessor.of(img), hdrSz, bp, ch, magic, enc, parallel);
+    }
+
+    /**
+     * Stream sui byte tra position e limit, senza copiarli se il buffer ha un array accessibile
+     */
+    private static InputStream inputStream(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * {@link ByteArrayOutputStream} che restituisce il proprio buffer senza copiarlo
+     */
+    private static final class BufferOutputStream extends ByteArrayOutputStream {
+        BufferOutputStream(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
     }
 
     /**
      * Verifica se l'immagine contiene metadati validi
      */
     private static boolean checkMeta(
-            BufferedImage img,
+            ChannelAccessor pixels,
             int headerSize,
             int bitPlane,
             int channel,
             int magicNum
     ) {
         // Extract only magic number (first 32 bits)
-        List<Integer> bits = readBits(img, headerSize, bitPlane, channel, 32);
+        BitCursor bits = readBits(pixels, headerSize, bitPlane, channel, 0, 32, DEFAULT_PARALLEL_THRESHOLD);
 
-        byte[] headerBytes = bitsToBytes(bits);
+        byte[] headerBytes = bits.bytes(0, bits.limit());
 
         if (headerBytes.length < 4) {
             return false;
@@ -455,22 +1240,24 @@ public class Steganography {
     }
 
     /**
-     * Converte lista di bit in bytes
+     * Come {@link #checkMeta}, controllando anche che il payload sia integro: con l'header versione 2 basta il
+     * CRC32C, senza decomprimere né interpretare il JSON; con quello della versione 1 serve un'estrazione completa
      */
-    private static byte[] bitsToBytes(List<Integer> bits) {
-        byte[] result = new byte[(bits.size() + 7) / 8];
-        for (int i = 0; i < bits.size(); i += 8) {
-            int byteVal = 0;
-            for (int j = 0; j < 8; j++) {
-                if (i + j < bits.size()) {
-                    byteVal = (byteVal << 1) | bits.get(i + j);
-                } else {
-                    byteVal = byteVal << 1;
-                }
-            }
-            result[i / 8] = (byte) byteVal;
+    private static boolean deepCheckMeta(
+            ChannelAccessor pixels,
+            int headerSize,
+            int bitPlane,
+            int channel,
+            int magicNum,
+            String encoding,
+            int parallelThreshold
+    ) {
+        RawPayload payload = readPayload(pixels, headerSize, bitPlane, channel, magicNum, parallelThreshold);
+        if (payload == null) {
+            return false;
         }
-        return result;
+        return payload.checksummed()
+                || extBits(pixels, headerSize, bitPlane, channel, magicNum, encoding, parallelThreshold) != null;
     }
 
     /**
@@ -480,6 +1267,40 @@ public class Steganography {
         public Integer headerSz;
         public Integer bitPlane;
         public Integer channelIdx;
+        /**
+         * Numero massimo di immagini elaborate contemporaneamente (default 1, cioè in sequenza)
+         */
+        public Integer parallelism;
+        /**
+         * Se true usa virtual thread invece di un pool di thread di piattaforma: adatto quando il tempo
+         * è dominato dall'I/O (storage di rete) più che dalla CPU
+         */
+        public Boolean virtualThreads;
+        /**
+         * Thread per stadio di batchPipeline: lettura e decodifica, incorporamento, codifica PNG e scrittura
+         * (default: parallelism)
+         */
+        public Integer decodeThreads;
+        public Integer embedThreads;
+        public Integer encodeThreads;
+        /**
+         * Capienza delle code tra gli stadi di batchPipeline (default: il numero massimo di thread di uno stadio)
+         */
+        public Integer queueCapacity;
+        /**
+         * Compressione dei PNG scritti (vedi {@link ProcMetaConfig})
+         */
+        public Integer pngLevel;
+        public String pngFilter;
+        public Integer pngThreads;
+        /**
+         * Metadati compressi (vedi {@link ProcMetaConfig#compress})
+         */
+        public Boolean compress;
+        /**
+         * Embed riga per riga (vedi {@link ProcMetaConfig#streaming}); non usato da batchPipeline
+         */
+        public Boolean streaming;
 
         public BatchProcConfig() {
         }
@@ -489,6 +1310,13 @@ public class Steganography {
             this.bitPlane = bitPlane;
             this.channelIdx = channelIdx;
         }
+
+        public BatchProcConfig(Integer headerSz, Integer bitPlane, Integer channelIdx,
+                               Integer parallelism, Boolean virtualThreads) {
+            this(headerSz, bitPlane, channelIdx);
+            this.parallelism = parallelism;
+            this.virtualThreads = virtualThreads;
+        }
     }
 
     /**
@@ -513,54 +1341,234 @@ public class Steganography {
         int headerSz = config.headerSz != null ? config.headerSz : 32;
         int bitPlane = config.bitPlane != null ? config.bitPlane : 1;
         int channelIdx = config.channelIdx != null ? config.channelIdx : -1;
-
-        Map<Path, Boolean> results = new HashMap<>();
+        int parallelism = config.parallelism != null ? config.parallelism : 1;
+        boolean virtualThreads = config.virtualThreads != null ? config.virtualThreads : false;
+
+        ProcMetaConfig procConfig = new ProcMetaConfig();
+        procConfig.hdrSz = headerSz;
+        procConfig.bp = bitPlane;
+        procConfig.pngLevel = config.pngLevel;
+        procConfig.pngFilter = config.pngFilter;
+        procConfig.pngThreads = config.pngThreads;
+        procConfig.compress = config.compress;
+        procConfig.streaming = config.streaming;
 
         if (!Files.exists(outDir)) {
             Files.createDirectories(outDir);
         }
 
-        for (Path imgPath : paths) {
-            try {
-                Path filename = imgPath.getFileName();
-                Path outputPath = outDir.resolve(filename);
+        // Immagini troppo piccole per i metadati vengono scartate leggendo solo l'header, senza decodificarle
+        long payloadBytes = embedPayloadSize(ops, config.compress != null && config.compress);
+
+        if (parallelism <= 1) {
+            Map<Path, Boolean> results = new HashMap<>();
+            for (Path imgPath : paths) {
+                results.put(imgPath, fits(imgPath, payloadBytes, channelIdx, bitPlane)
+                        && batchOne(imgPath, ops, outDir, channelIdx, procConfig));
+            }
+            return results;
+        }
+
+        // Il semaforo limita le immagini in lavorazione (e quindi decodificate in memoria): chi sottomette
+        // si ferma finché un worker non si libera, anche con i virtual thread, che non hanno un pool fisso
+        Map<Path, Boolean> results = new ConcurrentHashMap<>();
+        Semaphore inFlight = new Semaphore(parallelism);
+        try (ExecutorService executor = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(parallelism)) {
+            for (Path imgPath : paths) {
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        // Anche il controllo dell'header legge il file: lo fa il worker, non il thread che sottomette
+                        results.put(imgPath, fits(imgPath, payloadBytes, channelIdx, bitPlane)
+                                && batchOne(imgPath, ops, outDir, channelIdx, procConfig));
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch interrupted");
+        }
 
-                Map<String, Object> opsCopy = new HashMap<>(ops);
-                opsCopy.put("out", outputPath);
-                opsCopy.put("ch", channelIdx);
+        return new HashMap<>(results);
+    }
 
-                ProcMetaConfig procConfig = new ProcMetaConfig();
-                procConfig.hdrSz = headerSz;
-                procConfig.bp = bitPlane;
-                Object result = procMeta(imgPath, opsCopy, procConfig);
+    /**
+     * Risultato di batchPipeline
+     */
+    public static class BatchReport {
+        /**
+         * {path_originale: success_bool}, come per batchProc
+         */
+        public final Map<Path, Boolean> results;
+        /**
+         * Statistiche per stadio (decode, embed, encode), utili a dimensionare i thread di ciascuno
+         */
+        public final List<StagedPipeline.StageStats> stages;
+
+        BatchReport(Map<Path, Boolean> results, List<StagedPipeline.StageStats> stages) {
+            this.results = results;
+            this.stages = stages;
+        }
+    }
 
-                switch (result) {
-                    case Map map -> {
-                        @SuppressWarnings("unchecked")
-                        boolean success = (Boolean) map.getOrDefault("success", false);
-                        results.put(imgPath, success);
+    /**
+     * Come batchProc per le operazioni embed e update, ma lettura/decodifica, incorporamento e
+     * codifica/scrittura sono stadi separati che lavorano in parallelo, ciascuno con i propri thread.
+     * <p>
+     * Le code tra gli stadi sono limitate: le immagini decodificate in memoria non sono mai più di
+     * (thread totali + 2 * queueCapacity).
+     *
+     * @param paths  lista percorsi immagini
+     * @param ops    dizionario operazioni: 'embed' con 'data', oppure 'update'
+     * @param outDir directory output
+     * @param config configurazione (se null o campi null, usa defaults)
+     * @return esito per immagine e statistiche per stadio
+     */
+    public static BatchReport batchPipeline(
+            List<Path> paths,
+            Map<String, Object> ops,
+            Path outDir,
+            BatchProcConfig config
+    ) throws IOException {
+        // Apply defaults
+        if (config == null) {
+            config = new BatchProcConfig();
+        }
+        int headerSz = config.headerSz != null ? config.headerSz : 32;
+        int bitPlane = config.bitPlane != null ? config.bitPlane : 1;
+        int channelIdx = config.channelIdx != null ? config.channelIdx : -1;
+        int parallelism = config.parallelism != null ? config.parallelism : 1;
+        int decodeThreads = config.decodeThreads != null ? config.decodeThreads : parallelism;
+        int embedThreads = config.embedThreads != null ? config.embedThreads : parallelism;
+        int encodeThreads = config.encodeThreads != null ? config.encodeThreads : parallelism;
+        int queueCapacity = config.queueCapacity != null ? config.queueCapacity
+                : Math.max(decodeThreads, Math.max(embedThreads, encodeThreads));
+
+        boolean embed = (Boolean) ops.getOrDefault("embed", false);
+        if (embed ? !ops.containsKey("data") : !ops.containsKey("update")) {
+            throw new IllegalArgumentException("batchPipeline supports only 'embed' with 'data', or 'update'");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = (Map<String, Object>) ops.get(embed ? "data" : "update");
+        boolean overwrite = (Boolean) ops.getOrDefault("overwrite", false);
+        int magic = DEFAULT_MAGIC;
+        String enc = DEFAULT_ENCODING;
+        boolean compress = config.compress != null ? config.compress : false;
+        PngEncoder encoder = pngEncoder(config.pngLevel, config.pngFilter, config.pngThreads);
+
+        if (!Files.exists(outDir)) {
+            Files.createDirectories(outDir);
+        }
+
+        StagedPipeline<Path> pipeline = new StagedPipeline<Path>(queueCapacity)
+                .stage("decode", decodeThreads, (Path p, Path in) -> openImage(p, !p.equals(outDir.resolve(p.getFileName()))))
+                .stage("embed", embedThreads, (Path p, BufferedImage img) -> {
+                    Map<String, Object> metaData = embed
+                            ? data
+                            : mergeUpdate(ChannelAccessor.of(img), data, headerSz, bitPlane, channelIdx, magic, enc,
+                            DEFAULT_PARALLEL_THRESHOLD);
+                    return embBits(img, metaData, headerSz, bitPlane, channelIdx, magic, enc, compress,
+                            DEFAULT_PARALLEL_THRESHOLD);
+                })
+                .stage("encode", encodeThreads, (Path p, CopyOnWriteImage img) -> {
+                    Path outputPath = outDir.resolve(p.getFileName());
+                    if (embed && !overwrite && outputPath.equals(p)) {
+                        String[] baseExt = splitNameExtension(p.getFileName());
+                        outputPath = outputPath.resolveSibling(baseExt[0] + "_embedded" + baseExt[1]);
                     }
-                    case Boolean b -> results.put(imgPath, b);
-                    case String s -> results.put(imgPath, Files.exists(Paths.get(s)));
-                    case null, default -> results.put(imgPath, false);
-                }
-            } catch (Exception e) {
-                results.put(imgPath, false);
+                    writePng(encoder, img, p, outputPath);
+                    return outputPath;
+                });
+
+        // Le immagini troppo piccole per i metadati non entrano nemmeno nella pipeline
+        long payloadBytes = embedPayloadSize(ops, compress);
+        List<Path> accepted = new ArrayList<>();
+        Map<Path, Boolean> rejected = new HashMap<>();
+        for (Path p : paths) {
+            if (fits(p, payloadBytes, channelIdx, bitPlane)) {
+                accepted.add(p);
+            } else {
+                rejected.put(p, false);
             }
         }
 
-        return results;
+        Map<Path, Boolean> results = new HashMap<>(pipeline.run(accepted));
+        results.putAll(rejected);
+        return new BatchReport(results, pipeline.stats());
+    }
+
+    /**
+     * Esegue le operazioni batch su una singola immagine
+     *
+     * @return true se l'operazione ha avuto successo
+     */
+    private static boolean batchOne(
+            Path imgPath,
+            Map<String, Object> ops,
+            Path outDir,
+            int channelIdx,
+            ProcMetaConfig procConfig
+    ) {
+        try {
+            Path filename = imgPath.getFileName();
+            Path outputPath = outDir.resolve(filename);
+
+            Map<String, Object> opsCopy = new HashMap<>(ops);
+            opsCopy.put("out", outputPath);
+            opsCopy.put("ch", channelIdx);
+
+            Object result = procMeta(imgPath, opsCopy, procConfig);
+
+            return switch (result) {
+                case Map map -> {
+                    @SuppressWarnings("unchecked")
+                    boolean success = (Boolean) map.getOrDefault("success", false);
+                    yield success;
+                }
+                case Boolean b -> b;
+                case String s -> Files.exists(Paths.get(s));
+                case null, default -> false;
+            };
+        } catch (Exception e) {
+            return false;
+        }
     }
 
     /**
      * Estrae metadati nascosti da immagine PNG.
+     * <p>
+     * Con {@code keys} i valori delle altre chiavi non vengono nemmeno costruiti: il JSON viene indicizzato e
+     * si leggono solo le chiavi richieste, che mancano dal risultato se non sono nei metadati.
      *
      * @param p    percorso immagine
      * @param keys lista chiavi specifiche da estrarre (null = tutte)
-     * @return dizionario metadati
+     * @return dizionario metadati, oppure null se l'immagine non ne contiene
+     * @throws UncheckedIOException se il file non si legge o non è un'immagine valida
      */
     public static Map<String, Object> getMeta(String p, List<String> keys) {
-        throw new UnsupportedOperationException("get_meta");
+        Path path = Paths.get(p);
+        try {
+            // Come extract: se il formato lo permette, decodifica solo le righe che contengono il payload
+            try (PngDecoder decoder = PngDecoder.open(path)) {
+                if (decoder != null) {
+                    return extBits(decoder.channels(), 32, 1, -1, DEFAULT_MAGIC, DEFAULT_ENCODING,
+                            DEFAULT_PARALLEL_THRESHOLD, keys);
+                }
+            }
+
+            BufferedImage img = openImage(path, true);
+            if (img == null) {
+                throw new IOException("Not a valid PNG file");
+            }
+            return extBits(ChannelAccessor.of(img), 32, 1, -1, DEFAULT_MAGIC, DEFAULT_ENCODING,
+                    DEFAULT_PARALLEL_THRESHOLD, keys);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -571,49 +1579,20 @@ public class Steganography {
      * @return La stringa JSON che descrive l'oggetto
      */
     private static String toJson(Map<String, Object> map) {
-        StringBuilder sb = new StringBuilder();
-
-        List<String> keyValues = new ArrayList<>();
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            // Skip null values
-            if (value == null) {
-                continue;
-            }
-
-            sb.append("\"").append(escapeJson(key)).append("\":").append(valueToJson(value));
-
-            keyValues.add(sb.toString());
-            sb.setLength(0);
-        }
-
-        return "{" + String.join(",", keyValues) + "}";
-    }
-
-    private static String valueToJson(Object value) {
-        return switch (value) {
-            case Map m -> toJson(m);
-            case List l -> "[" + l.stream().map(Steganography::valueToJson).collect(joining(",")) + "]";
-            case String s -> "\"" + escapeJson(s) + "\"";
-            case Number n -> n.toString();
-            case Boolean b -> b.toString();
-            default -> throw new IllegalArgumentException(value.toString());
-        };
-    }
-
-    private static String escapeJson(String str) {
-        return str.replaceAll("[\"\n\r\t\\\\]", "\\\\$0");
+        return new JSONWriter(256).writeObject(map).toString();
     }
 
     /**
-     * Deserializza un oggetto generico dalla rappresentazione JSON. Supporta stringhe, numeri, booleani, array, oggetti.
+     * Deserializza un oggetto generico dai byte UTF-8 della sua rappresentazione JSON. Supporta stringhe, numeri,
+     * booleani, null, array, oggetti.
      *
-     * @param json La stringa JSON da deserializzare
+     * @param json   I byte da deserializzare
+     * @param offset Primo byte del JSON
+     * @param length Numero di byte del JSON
      * @return Una mappa contenente i valori estratti
      */
-    private static Map<String, Object> fromJson(String json) {
-        JSONParser parser = new JSONParser(json);
+    private static Map<String, Object> fromJson(byte[] json, int offset, int length) {
+        JSONParser parser = new JSONParser(json, offset, length);
         return parser.parseMainObject();
     }
 }
\ No newline at end of file
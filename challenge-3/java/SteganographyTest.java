@@ -6,20 +6,38 @@ import org.junit.jupiter.api.io.TempDir;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -268,6 +286,22 @@ public class SteganographyTest {
             assertEquals("Test Image", extractedMap.get("title")); // Altri metadati preservati
         }
 
+        @Test
+        @DisplayName("Test aggiornamento che non cambia i metadati")
+        void testUpdateUnchangedMetadata() throws IOException {
+            Path updated = tempDir.resolve("updated.png");
+            Path again = tempDir.resolve("updated_again.png");
+            Map<String, Object> updateData = Map.of("author", "New Author");
+
+            Steganography.procMeta(testPngWithMetadata, Map.of("update", updateData, "out", updated), null);
+            Object result = Steganography.procMeta(updated, Map.of("update", updateData, "out", again), null);
+
+            Map<String, Object> resultMap = assertIsResultMap(result);
+            assertTrue((Boolean) resultMap.get("success"));
+            // Nessun bit da cambiare: il file è lo stesso, byte per byte
+            assertArrayEquals(Files.readAllBytes(updated), Files.readAllBytes(again));
+        }
+
         @Test
         @DisplayName("Test con file inesistente")
         void testNonexistentFile() {
@@ -449,6 +483,334 @@ public class SteganographyTest {
             );
             assertEquals(metadata, extracted);
         }
+
+        @Test
+        @DisplayName("Test scrittura PNG con compressione, filtro e thread configurati")
+        void testPngWriterOptions() throws IOException {
+            // Immagine abbastanza alta da essere compressa in più blocchi
+            Path source = tempDir.resolve("noise.png");
+            BufferedImage img = new BufferedImage(300, 1000, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(7);
+            for (int y = 0; y < img.getHeight(); y++) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    img.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+            ImageIO.write(img, "PNG", source.toFile());
+
+            Map<String, Object> metadata = Map.of("writer", "fast");
+            for (String filter : List.of("none", "sub", "up", "average", "paeth", "adaptive")) {
+                Path output = tempDir.resolve("noise_" + filter + ".png");
+                var config = new Steganography.ProcMetaConfig();
+                config.pngLevel = 1;
+                config.pngFilter = filter;
+                config.pngThreads = 2;
+
+                Object result = Steganography.procMeta(
+                        source,
+                        Map.of("embed", true, "data", metadata, "out", output),
+                        config
+                );
+                assertEquals(true, result);
+
+                // Il PNG deve restare leggibile da ImageIO e invariato fuori dai bit usati
+                BufferedImage written = ImageIO.read(output.toFile());
+                assertEquals(img.getRGB(299, 999), written.getRGB(299, 999));
+                assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), null));
+            }
+        }
+
+        @Test
+        @DisplayName("Test incorporamento in immagine con trasparenza")
+        void testEmbedPreservesAlpha() throws IOException {
+            Path source = tempDir.resolve("alpha.png");
+            BufferedImage img = new BufferedImage(50, 50, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < img.getHeight(); y++) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    img.setRGB(x, y, ((x * 5) << 24) | (y * 0x010305));
+                }
+            }
+            ImageIO.write(img, "PNG", source.toFile());
+
+            Path output = tempDir.resolve("alpha_meta.png");
+            Map<String, Object> metadata = Map.of("alpha", "kept");
+            Object result = Steganography.procMeta(
+                    source,
+                    Map.of("embed", true, "data", metadata, "out", output),
+                    null
+            );
+            assertEquals(true, result);
+
+            // Il canale alfa non viene toccato né perso nella conversione
+            BufferedImage written = ImageIO.read(output.toFile());
+            assertTrue(written.getColorModel().hasAlpha());
+            assertEquals(img.getRGB(10, 0) >>> 24, written.getRGB(10, 0) >>> 24);
+            assertEquals(img.getRGB(49, 49), written.getRGB(49, 49));
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), null));
+        }
+
+        @Test
+        @DisplayName("Test capacità letta dall'header e rifiuto di metadati troppo grandi")
+        void testCapacityAndOversizePayload() throws IOException {
+            // 100x100 pixel: 30000 bit su tutti i canali, 10000 su uno solo, meno 96 bit di header
+            assertEquals(3738, Steganography.capacity(testPng, null, null));
+            assertEquals(1238, Steganography.capacity(testPng, 0, 1));
+            assertEquals(0, Steganography.capacity(testPng, -1, 9));
+
+            Path output = tempDir.resolve("too_big.png");
+            Object result = Steganography.procMeta(
+                    testPng,
+                    Map.of("embed", true, "data", Map.of("big", "x".repeat(5000)), "out", output),
+                    null
+            );
+
+            Map<String, Object> resultMap = assertIsResultMap(result);
+            assertFalse((Boolean) resultMap.get("success"));
+            assertFalse(Files.exists(output));
+
+            Map<Path, Boolean> batch = Steganography.batchProc(
+                    multipleTestPngs,
+                    Map.of("embed", true, "data", Map.of("big", "x".repeat(5000))),
+                    tempDir.resolve("too_big"),
+                    null
+            );
+            assertFalse(batch.values().stream().anyMatch(Boolean::booleanValue));
+        }
+
+        @Test
+        @DisplayName("Test rifiuto di piani di bit fuori dai campioni")
+        void testInvalidBitPlane() throws IOException {
+            byte[] png = Files.readAllBytes(testPng);
+            for (int bp : new int[]{0, 9}) {
+                var config = new Steganography.ProcMetaConfig();
+                config.bp = bp;
+                Path output = tempDir.resolve("plane_" + bp + ".png");
+
+                Object result = Steganography.procMeta(
+                        testPng,
+                        Map.of("embed", true, "data", Map.of("author", "Test Author"), "out", output),
+                        config
+                );
+
+                Map<String, Object> resultMap = assertIsResultMap(result);
+                assertFalse((Boolean) resultMap.get("success"));
+                assertEquals("Invalid bit plane: " + bp, resultMap.get("error"));
+                assertFalse(Files.exists(output));
+                assertThrows(IllegalArgumentException.class,
+                        () -> Steganography.embed(png, Map.of("author", "Test Author"), config));
+            }
+        }
+
+        @Test
+        @DisplayName("Test caratteri da escapare e non ASCII")
+        void testEscapedCharacters() {
+            Map<String, Object> metadata = Map.of(
+                    "caption", "riga 1\nriga 2\ttab \"citato\" \\ fine",
+                    "unicode", "città € 😀",
+                    "control", "bell \u0007 escape \u001b",
+                    "list", List.of(7L, 2.5, true)
+            );
+            Path output = tempDir.resolve("escaped.png");
+
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output), null);
+
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), null));
+        }
+
+        @Test
+        @DisplayName("Test incorporamento ed estrazione di numeri negativi, esponenti e null")
+        void testNumbersAndNull() {
+            Map<String, Object> metadata = Map.of(
+                    "lat", -45.4642,
+                    "lon", 9.19,
+                    "alt", -12L,
+                    "min", Long.MIN_VALUE,
+                    "tiny", 1.5e-300,
+                    "readings", Arrays.asList(1L, null, -0.25)
+            );
+            Path output = tempDir.resolve("numbers.png");
+
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output), null);
+
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), null));
+        }
+
+        @Test
+        @DisplayName("Test estrazione con una codifica diversa da UTF-8")
+        void testOtherEncoding() {
+            Map<String, Object> metadata = Map.of("author", "Niccolò", "pages", 12L);
+            var config = new Steganography.ProcMetaConfig();
+            config.enc = "UTF-16";
+            Path output = tempDir.resolve("utf16.png");
+
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output), config);
+
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), config));
+        }
+
+        @Test
+        @DisplayName("Test incorporamento ed estrazione di metadati compressi")
+        void testCompressedPayload() {
+            // Troppo grandi per l'immagine se non compressi (vedi test precedente)
+            Map<String, Object> metadata = Map.of("big", "x".repeat(5000), "author", "Test Author");
+            var config = new Steganography.ProcMetaConfig();
+            config.compress = true;
+
+            Path output = tempDir.resolve("compressed.png");
+            Object result = Steganography.procMeta(
+                    testPng,
+                    Map.of("embed", true, "data", metadata, "out", output),
+                    config
+            );
+            assertEquals(true, result);
+
+            // L'estrazione riconosce il formato senza configurazione
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), null));
+            assertEquals(true, Steganography.procMeta(output, Map.of("verify", true), null));
+        }
+
+        @Test
+        @DisplayName("Test payload compresso che decompresso supera il limite")
+        void testInflatedSizeLimit() throws IOException {
+            // 64 MB di testo ripetuto si comprimono in circa 64 KB
+            Path large = tempDir.resolve("large.png");
+            ImageIO.write(new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB), "PNG", large.toFile());
+            var config = new Steganography.ProcMetaConfig();
+            config.compress = true;
+
+            Path output = tempDir.resolve("bomb.png");
+            Map<String, Object> metadata = Map.of("big", "x".repeat(64 << 20));
+            assertEquals(true, Steganography.procMeta(large, Map.of("embed", true, "data", metadata, "out", output), config));
+
+            // Senza stampare il valore in caso di errore: sono 64 MB
+            Object extracted = Steganography.procMeta(output, Map.of("extract", true), null);
+            assertTrue(extracted == null, "Payload decompresso oltre il limite");
+        }
+
+        @Test
+        @DisplayName("Test embed e update riga per riga")
+        void testStreamingEmbed() throws IOException {
+            Map<String, Object> metadata = Map.of("author", "Test Author");
+            Path inMemory = tempDir.resolve("in_memory.png");
+            Path streamed = tempDir.resolve("streamed.png");
+            var config = new Steganography.ProcMetaConfig();
+            config.streaming = true;
+
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", inMemory), null);
+            Object result = Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", streamed), config);
+            assertEquals(true, result);
+
+            // Stessi pixel dell'embed in memoria
+            BufferedImage expected = ImageIO.read(inMemory.toFile());
+            BufferedImage actual = ImageIO.read(streamed.toFile());
+            assertArrayEquals(
+                    expected.getRGB(0, 0, 100, 100, null, 0, 100),
+                    actual.getRGB(0, 0, 100, 100, null, 0, 100)
+            );
+
+            // Update sullo stesso file
+            result = Steganography.procMeta(streamed, Map.of("update", Map.of("title", "Streamed")), config);
+            assertTrue((Boolean) assertIsResultMap(result).get("success"));
+            assertEquals(
+                    Map.of("author", "Test Author", "title", "Streamed"),
+                    Steganography.procMeta(streamed, Map.of("extract", true), null)
+            );
+        }
+
+        @Test
+        @DisplayName("Test verifica profonda con il checksum dell'header")
+        void testDeepVerify() throws IOException {
+            assertEquals(true, Steganography.procMeta(testPngWithMetadata, Map.of("verify", true, "deep", true), null));
+
+            // Un bit del payload (dopo i 96 bit di header) cambiato: il magic number c'è ancora, il CRC32C non torna
+            BufferedImage img = ImageIO.read(testPngWithMetadata.toFile());
+            img.setRGB(40, 0, img.getRGB(40, 0) ^ 0x010000);
+            Path corrupted = tempDir.resolve("corrupted.png");
+            ImageIO.write(img, "PNG", corrupted.toFile());
+
+            assertEquals(true, Steganography.procMeta(corrupted, Map.of("verify", true), null));
+            assertEquals(false, Steganography.procMeta(corrupted, Map.of("verify", true, "deep", true), null));
+            assertNull(Steganography.procMeta(corrupted, Map.of("extract", true), null));
+        }
+
+        @Test
+        @DisplayName("Test lettura dell'header senza checksum (versione 1)")
+        void testVersion1Header() throws IOException {
+            // Magic number, lunghezza e JSON nei bit meno significativi di R, G e B, come nelle versioni precedenti
+            byte[] json = "{\"author\":\"Old Author\"}".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer payload = ByteBuffer.allocate(8 + json.length).putInt(0x4D455441).putInt(json.length).put(json);
+            BufferedImage img = ImageIO.read(testPng.toFile());
+            for (int i = 0; i < payload.capacity() * 8; i++) {
+                int bit = (payload.get(i / 8) >>> (7 - i % 8)) & 1;
+                int x = (i / 3) % 100;
+                int y = (i / 3) / 100;
+                int shift = 16 - 8 * (i % 3);
+                img.setRGB(x, y, (img.getRGB(x, y) & ~(1 << shift)) | (bit << shift));
+            }
+            Path old = tempDir.resolve("version1.png");
+            ImageIO.write(img, "PNG", old.toFile());
+
+            assertEquals(Map.of("author", "Old Author"), Steganography.procMeta(old, Map.of("extract", true), null));
+            assertEquals(true, Steganography.procMeta(old, Map.of("verify", true, "deep", true), null));
+        }
+
+        @Test
+        @DisplayName("Test cache di extract e invalidazione dopo update")
+        void testCachedExtract() {
+            var config = new Steganography.ProcMetaConfig();
+            config.cache = true;
+            Map<String, Object> extract = Map.of("extract", true);
+
+            Steganography.CacheStats before = Steganography.cacheStats();
+            Object first = Steganography.procMeta(testPngWithMetadata, extract, config);
+            Object second = Steganography.procMeta(testPngWithMetadata, extract, config);
+            Steganography.CacheStats after = Steganography.cacheStats();
+
+            assertEquals(first, second);
+            assertEquals(before.misses + 1, after.misses);
+            assertEquals(before.hits + 1, after.hits);
+
+            // L'update riscrive il file: la voce in cache non vale più
+            Steganography.procMeta(testPngWithMetadata, Map.of("update", Map.of("author", "New Author")), config);
+            Map<String, Object> updated = assertIsResultMap(Steganography.procMeta(testPngWithMetadata, extract, config));
+            assertEquals("New Author", updated.get("author"));
+        }
+
+        @Test
+        @DisplayName("Test le modifiche ai valori annidati restituiti non toccano la cache")
+        void testCachedExtractIsDeepCopy() {
+            var config = new Steganography.ProcMetaConfig();
+            config.cache = true;
+            Map<String, Object> metadata = Map.of("list", List.of(1L, 2L), "nested", Map.of("key", "value"));
+            Path output = tempDir.resolve("cached_nested.png");
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output), null);
+
+            Map<String, Object> first = assertIsResultMap(Steganography.procMeta(output, Map.of("extract", true), config));
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) first.get("list");
+            list.add(3L);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> nested = (Map<String, Object>) first.get("nested");
+            nested.put("key", "changed");
+
+            assertEquals(metadata, Steganography.procMeta(output, Map.of("extract", true), config));
+        }
+
+        @Test
+        @DisplayName("Test embed ed extract in parallelo per fasce di righe")
+        void testParallelBands() throws IOException {
+            Map<String, Object> metadata = Map.of("log", "x".repeat(2000));
+            Path sequential = tempDir.resolve("sequential.png");
+            Path parallel = tempDir.resolve("parallel.png");
+            var config = new Steganography.ProcMetaConfig();
+            config.parallelThreshold = 0;
+
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", sequential), null);
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", parallel), config);
+
+            assertArrayEquals(Files.readAllBytes(sequential), Files.readAllBytes(parallel));
+            assertEquals(metadata, Steganography.procMeta(parallel, Map.of("extract", true), config));
+        }
     }
 
     @Nested
@@ -572,6 +934,553 @@ public class SteganographyTest {
             assertEquals(3, results.values().stream().filter(x -> x).count()); // Solo 3 su 4 hanno successo
             assertFalse(results.get(NON_EXISTENT));
         }
+
+        @Test
+        @DisplayName("Test batch parallelo, con pool di thread e con virtual thread")
+        void testBatchParallel() throws IOException {
+            List<Path> pathsWithError = new ArrayList<>(multipleTestPngs);
+            pathsWithError.add(NON_EXISTENT);
+
+            Map<String, Object> metadata = Map.of(
+                    "parallel", true
+            );
+
+            for (boolean virtualThreads : new boolean[]{false, true}) {
+                Path outputDir = tempDir.resolve("output_parallel_" + virtualThreads);
+                Map<Path, Boolean> results = Steganography.batchProc(
+                        pathsWithError,
+                        Map.of("embed", true, "data", metadata),
+                        outputDir,
+                        new Steganography.BatchProcConfig(null, null, null, 2, virtualThreads)
+                );
+
+                assertEquals(4, results.size());
+                assertFalse(results.get(NON_EXISTENT));
+                for (Path path : multipleTestPngs) {
+                    assertTrue(results.get(path));
+                    Object extracted = Steganography.procMeta(
+                            outputDir.resolve(path.getFileName()),
+                            Map.of("extract", true),
+                            null
+                    );
+                    assertEquals(metadata, extracted);
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Test pipeline a stadi per embed batch")
+        void testBatchPipeline() throws IOException {
+            Path outputDir = tempDir.resolve("output_pipeline");
+
+            List<Path> pathsWithError = new ArrayList<>(multipleTestPngs);
+            pathsWithError.add(NON_EXISTENT);
+
+            Map<String, Object> metadata = Map.of(
+                    "pipeline", "test"
+            );
+
+            Steganography.BatchProcConfig config = new Steganography.BatchProcConfig();
+            config.decodeThreads = 2;
+            config.queueCapacity = 1;
+            Steganography.BatchReport report = Steganography.batchPipeline(
+                    pathsWithError,
+                    Map.of("embed", true, "data", metadata),
+                    outputDir,
+                    config
+            );
+
+            assertEquals(4, report.results.size());
+            assertFalse(report.results.get(NON_EXISTENT));
+            for (Path path : multipleTestPngs) {
+                assertTrue(report.results.get(path));
+                Object extracted = Steganography.procMeta(
+                        outputDir.resolve(path.getFileName()),
+                        Map.of("extract", true),
+                        null
+                );
+                assertEquals(metadata, extracted);
+            }
+
+            // Statistiche per stadio: il file mancante fallisce in lettura, gli altri arrivano in fondo
+            assertEquals(List.of("decode", "embed", "encode"),
+                    report.stages.stream().map(s -> s.name()).toList());
+            assertEquals(3, report.stages.get(0).processed());
+            assertEquals(1, report.stages.get(0).failed());
+            assertEquals(3, report.stages.get(2).processed());
+        }
+    }
+
+    @Nested
+    @DisplayName("Test per embed ed extract in memoria")
+    class TestInMemory {
+
+        @Test
+        @DisplayName("Test incorporamento ed estrazione senza file")
+        void testEmbedExtractBytes() throws IOException {
+            Map<String, Object> metadata = Map.of("author", "Test Author", "upload", 42L);
+            byte[] png = Files.readAllBytes(testPng);
+
+            ByteBuffer embedded = Steganography.embed(png, metadata, null);
+            byte[] embeddedBytes = new byte[embedded.remaining()];
+            embedded.duplicate().get(embeddedBytes);
+
+            assertEquals(metadata, Steganography.extract(embedded, null));
+            assertNull(Steganography.extract(png, null));
+
+            // Stesso risultato leggendo da uno stream, e il PNG prodotto è valido anche su disco
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Steganography.embed(new ByteArrayInputStream(png), metadata, out, null);
+            assertArrayEquals(embeddedBytes, out.toByteArray());
+
+            Path written = Files.write(tempDir.resolve("from_memory.png"), embeddedBytes);
+            assertEquals(metadata, Steganography.procMeta(written, Map.of("extract", true), null));
+
+            assertThrows(IOException.class, () -> Steganography.embed(new byte[]{1, 2, 3}, metadata, null));
+        }
+
+        @Test
+        @DisplayName("Test canale singolo e scrittura su stream da un ByteBuffer")
+        void testChannelAndBufferToStream() throws IOException {
+            Map<String, Object> metadata = Map.of("author", "Test Author");
+            byte[] png = Files.readAllBytes(testPng);
+            var config = new Steganography.ProcMetaConfig();
+            config.ch = 1;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Steganography.embed(ByteBuffer.wrap(png), metadata, out, config);
+            byte[] embedded = out.toByteArray();
+
+            assertEquals(metadata, Steganography.extract(embedded, config));
+            assertNull(Steganography.extract(embedded, null));
+
+            // Stesso canale di procMeta con "ch", in entrambe le direzioni
+            Path output = tempDir.resolve("green.png");
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output, "ch", 1), null);
+            assertEquals(metadata, Steganography.extract(Files.readAllBytes(output), config));
+            Path written = Files.write(tempDir.resolve("green_memory.png"), embedded);
+            assertEquals(metadata, Steganography.procMeta(written, Map.of("extract", true, "ch", 1), null));
+        }
+    }
+
+    @Nested
+    @DisplayName("Test per getMeta")
+    class TestGetMeta {
+
+        @Test
+        @DisplayName("Test estrazione di alcune chiavi soltanto")
+        void testSelectedKeys() {
+            Map<String, Object> metadata = Map.of(
+                    "author", "Test Author",
+                    "exif", Map.of("iso", 200L, "tags", List.of("a", "}", Map.of("x", "]"))),
+                    "caption", "con \"virgolette\" e { parentesi",
+                    "width", -100L,
+                    "tab\tkey", true,
+                    "empty", Map.of("none", List.of())
+            );
+            Path output = tempDir.resolve("projected.png");
+            Steganography.procMeta(testPng, Map.of("embed", true, "data", metadata, "out", output), null);
+
+            assertEquals(
+                    Map.of("author", "Test Author", "width", -100L, "tab\tkey", true),
+                    Steganography.getMeta(output.toString(), List.of("author", "width", "tab\tkey", "missing"))
+            );
+            assertEquals(Map.of("exif", metadata.get("exif")), Steganography.getMeta(output.toString(), List.of("exif")));
+            assertEquals(metadata, Steganography.getMeta(output.toString(), null));
+        }
+
+        @Test
+        @DisplayName("Test getMeta senza metadati o su file inesistente")
+        void testNoMetadata() {
+            assertNull(Steganography.getMeta(testPng.toString(), List.of("author")));
+            assertThrows(UncheckedIOException.class, () -> Steganography.getMeta(NON_EXISTENT.toString(), null));
+        }
+    }
+
+    @Nested
+    @DisplayName("Test per il decoder PNG")
+    class TestPngDecoder {
+        private static final int WIDTH = 37;
+        private static final int HEIGHT = 9;
+
+        /**
+         * PNG con campioni casuali e lo stesso filtro su ogni riga, scritto a mano per non dipendere dall'encoder
+         * di ImageIO; con la palette aggiunge un chunk PLTE di 256 colori
+         */
+        private static byte[] png(int colorType, int bitDepth, int filter) throws IOException {
+            int samples = switch (colorType) {
+                case 2 -> 3;
+                case 4 -> 2;
+                case 6 -> 4;
+                default -> 1;
+            };
+            Random random = new Random(colorType * 100L + bitDepth);
+            int bpp = Math.max(1, samples * bitDepth / 8);
+            int rowBytes = WIDTH * samples * bitDepth / 8;
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] prior = new byte[rowBytes];
+            for (int y = 0; y < HEIGHT; y++) {
+                byte[] row = new byte[rowBytes];
+                random.nextBytes(row);
+                raw.write(filter);
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prior[i] & 0xFF;
+                    int c = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int predictor = switch (filter) {
+                        case 1 -> a;
+                        case 2 -> b;
+                        case 3 -> (a + b) >>> 1;
+                        case 4 -> Math.abs(p - a) <= Math.abs(p - b) && Math.abs(p - a) <= Math.abs(p - c) ? a
+                                : Math.abs(p - b) <= Math.abs(p - c) ? b : c;
+                        default -> 0;
+                    };
+                    raw.write(row[i] - predictor);
+                }
+                prior = row;
+            }
+            ByteArrayOutputStream idat = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(idat)) {
+                raw.writeTo(deflater);
+            }
+
+            byte[] palette = null;
+            if (colorType == PngDecoder.COLOR_PALETTE) {
+                palette = new byte[3 * 256];
+                random.nextBytes(palette);
+            }
+            return png(ihdr(WIDTH, HEIGHT, bitDepth, colorType), palette, idat.toByteArray());
+        }
+
+        private static byte[] ihdr(int width, int height, int bitDepth, int colorType) {
+            // Compressione, filtro e interlacciamento restano a 0
+            return ByteBuffer.allocate(13).putInt(width).putInt(height).put((byte) bitDepth).put((byte) colorType)
+                    .array();
+        }
+
+        private static byte[] png(byte[] ihdr, byte[] palette, byte[] idat) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(PngDecoder.SIGNATURE);
+            chunk(out, "IHDR", ihdr);
+            if (palette != null) {
+                chunk(out, "PLTE", palette);
+            }
+            chunk(out, "IDAT", idat);
+            chunk(out, "IEND", new byte[0]);
+            return out.toByteArray();
+        }
+
+        private static void chunk(ByteArrayOutputStream out, String type, byte[] data) {
+            byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(data);
+            out.writeBytes(ByteBuffer.allocate(12 + data.length)
+                    .putInt(data.length).put(name).put(data).putInt((int) crc.getValue())
+                    .array());
+        }
+
+        private Path write(byte[] png) throws IOException {
+            return Files.write(Files.createTempFile(tempDir, "decoder", ".png"), png);
+        }
+
+        @Test
+        @DisplayName("Test decodifica uguale a ImageIO: RGB e RGBA nativi, grigi e palette convertiti in RGB")
+        void testMatchesImageIO() throws IOException {
+            int[][] formats = {
+                    {PngDecoder.COLOR_GRAY, 8},
+                    {PngDecoder.COLOR_PALETTE, 8},
+                    {PngDecoder.COLOR_RGB, 8},
+                    {PngDecoder.COLOR_RGB, 16},
+                    {PngDecoder.COLOR_RGBA, 8},
+                    {PngDecoder.COLOR_RGBA, 16},
+            };
+            for (int[] format : formats) {
+                // I piani di bit sono quelli del campione nativo: 16 per RGB e RGBA a 16 bit
+                int planes = format[0] == PngDecoder.COLOR_RGB || format[0] == PngDecoder.COLOR_RGBA ? format[1] : 8;
+                for (int filter = 0; filter <= 4; filter++) {
+                    String name = "colorType=" + format[0] + " bitDepth=" + format[1] + " filter=" + filter;
+                    Path path = write(png(format[0], format[1], filter));
+
+                    // Come openImage senza il decoder: ImageIO, poi drawImage in RGB per grigi e palette
+                    BufferedImage expected = ImageIO.read(path.toFile());
+                    if (ChannelAccessor.direct(expected) == null) {
+                        BufferedImage rgb = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                        rgb.getGraphics().drawImage(expected, 0, 0, null);
+                        expected = rgb;
+                    }
+
+                    try (PngDecoder decoder = PngDecoder.open(path)) {
+                        assertNotNull(decoder, name);
+                        ChannelAccessor lazy = decoder.channels();
+                        ChannelAccessor reference = ChannelAccessor.of(expected);
+                        for (int px = 0; px < WIDTH * HEIGHT; px++) {
+                            for (int ch = 0; ch < 3; ch++) {
+                                for (int plane = 0; plane < planes; plane++) {
+                                    assertEquals(reference.bit(px, ch, plane), lazy.bit(px, ch, plane), name);
+                                }
+                            }
+                        }
+                    }
+
+                    // Anche l'immagine intera, con lo stesso layout e gli stessi campioni
+                    try (PngDecoder decoder = PngDecoder.open(path)) {
+                        BufferedImage actual = decoder.readImage();
+                        assertEquals(expected.getRaster().getNumBands(), actual.getRaster().getNumBands(), name);
+                        assertArrayEquals(
+                                expected.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null),
+                                actual.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null),
+                                name
+                        );
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Test formati non gestiti lasciati a ImageIO")
+        void testUnsupportedFormats() throws IOException {
+            // Grigi con alfa e grigi a 16 bit: la conversione in RGB di ImageIO non è riproducibile esattamente
+            int[][] formats = {{4, 8}, {4, 16}, {PngDecoder.COLOR_GRAY, 16}};
+            for (int[] format : formats) {
+                assertNull(PngDecoder.open(write(png(format[0], format[1], 0))),
+                        "colorType=" + format[0] + " bitDepth=" + format[1]);
+            }
+        }
+
+        @Test
+        @DisplayName("Test file grande letto a blocchi senza mappatura, con gli IDAT divisi in più chunk")
+        void testUnmappedLargeFile() throws IOException {
+            byte[] png = png(PngDecoder.COLOR_RGB, 8, 4);
+            ByteBuffer source = ByteBuffer.wrap(png, 8 + 25, png.length - 8 - 25); // dopo firma e IHDR
+            byte[] idat = new byte[source.getInt()];
+            source.position(source.position() + 4).get(idat);
+
+            Path path = tempDir.resolve("large.png");
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                head.write(png, 0, 8 + 25);
+                for (int i = 0; i < idat.length; i += 100) {
+                    chunk(head, "IDAT", Arrays.copyOfRange(idat, i, Math.min(idat.length, i + 100)));
+                }
+                channel.write(ByteBuffer.wrap(head.toByteArray()));
+
+                // Un chunk ancillare dopo gli IDAT porta il file oltre la soglia di mappatura (il file resta sparso)
+                long size = PngDecoder.MAP_THRESHOLD;
+                channel.write(ByteBuffer.allocate(8).putInt((int) size).put("zzZz".getBytes(StandardCharsets.US_ASCII)).flip());
+                channel.position(channel.position() + size + 4);
+                ByteArrayOutputStream iend = new ByteArrayOutputStream();
+                chunk(iend, "IEND", new byte[0]);
+                channel.write(ByteBuffer.wrap(iend.toByteArray()));
+            }
+
+            BufferedImage expected;
+            try (PngDecoder decoder = PngDecoder.open(ByteBuffer.wrap(png))) {
+                expected = decoder.readImage();
+            }
+            for (boolean map : new boolean[]{true, false}) {
+                try (PngDecoder decoder = PngDecoder.open(path, map)) {
+                    assertNotNull(decoder);
+                    BufferedImage actual = decoder.readImage();
+                    assertArrayEquals(
+                            expected.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null),
+                            actual.getRaster().getPixels(0, 0, WIDTH, HEIGHT, (int[]) null),
+                            "map=" + map
+                    );
+                }
+            }
+            assertTrue(PngDecoder.decodable(path));
+        }
+
+        @Test
+        @DisplayName("Test header e palette malformati rifiutati con IOException")
+        void testMalformedHeader() throws IOException {
+            byte[] idat = new byte[0];
+            int[][] sizes = {{0, HEIGHT}, {WIDTH, 0}, {-1, HEIGHT}, {WIDTH, -5}, {Integer.MAX_VALUE / 2, HEIGHT}};
+            for (int[] size : sizes) {
+                byte[] png = png(ihdr(size[0], size[1], 8, PngDecoder.COLOR_RGB), null, idat);
+                assertThrows(IOException.class, () -> PngDecoder.open(write(png)), size[0] + "x" + size[1]);
+                assertThrows(IOException.class, () -> Steganography.extract(png, null), size[0] + "x" + size[1]);
+            }
+
+            for (int length : new int[]{3 * 256 + 3, 10, 2}) {
+                Path path = write(png(ihdr(WIDTH, HEIGHT, 8, PngDecoder.COLOR_PALETTE), new byte[length], idat));
+                assertThrows(IOException.class, () -> PngDecoder.open(path), "PLTE " + length);
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Test per la lettura e scrittura dei bit in blocco")
+    class TestBulkBits {
+        private static final int WIDTH = 133;
+        private static final int HEIGHT = 5;
+
+        private record Case(String name, ChannelAccessor pixels, boolean writable) {
+        }
+
+        /**
+         * Un'immagine di pixel casuali per ogni accessor; le righe sono più lunghe di un vettore e non ne sono
+         * un multiplo
+         */
+        private static List<Case> cases() throws IOException {
+            ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+            BufferedImage intRgb = random(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB));
+            BufferedImage intRgbStride = random(new BufferedImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF),
+                    Raster.createPackedRaster(new DataBufferInt((WIDTH + 7) * HEIGHT), WIDTH, HEIGHT, WIDTH + 7,
+                            new int[]{0xFF0000, 0xFF00, 0xFF}, null), false, null));
+            BufferedImage bgr = random(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR));
+            BufferedImage abgr = random(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_4BYTE_ABGR));
+            ColorModel rgb8 = new ComponentColorModel(sRGB, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+            BufferedImage rgb = random(new BufferedImage(rgb8, Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,
+                    WIDTH, HEIGHT, 3 * WIDTH, 3, new int[]{0, 1, 2}, null), false, null));
+            BufferedImage rgbPadded = random(new BufferedImage(rgb8, Raster.createInterleavedRaster(
+                    DataBuffer.TYPE_BYTE, WIDTH, HEIGHT, 3 * WIDTH + 5, 3, new int[]{0, 1, 2}, null), false, null));
+            ColorModel rgb16 = new ComponentColorModel(sRGB, false, false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+            BufferedImage deep = random(new BufferedImage(rgb16, rgb16.createCompatibleWritableRaster(WIDTH, HEIGHT),
+                    false, null));
+            BufferedImage gray = random(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY));
+            BufferedImage indexed = random(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED));
+
+            // Copie con alcune righe già scritte e altre ancora condivise con l'originale
+            CopyOnWriteImage intCopy = new CopyOnWriteImage(intRgb);
+            CopyOnWriteImage rgbCopy = new CopyOnWriteImage(rgb);
+            for (CopyOnWriteImage copy : List.of(intCopy, rgbCopy)) {
+                copy.setBit(WIDTH + 3, 0, 0, copy.bit(WIDTH + 3, 0, 0));
+                copy.setBit(3 * WIDTH, 2, 1, copy.bit(3 * WIDTH, 2, 1));
+            }
+
+            List<Case> cases = new ArrayList<>(List.of(
+                    new Case("INT_RGB", ChannelAccessor.of(intRgb), true),
+                    new Case("INT_RGB con stride", ChannelAccessor.of(intRgbStride), true),
+                    new Case("3BYTE_BGR", ChannelAccessor.of(bgr), true),
+                    new Case("4BYTE_ABGR", ChannelAccessor.of(abgr), true),
+                    new Case("RGB a 8 bit", ChannelAccessor.of(rgb), true),
+                    new Case("RGB a 8 bit con stride", ChannelAccessor.of(rgbPadded), true),
+                    new Case("RGB a 16 bit", ChannelAccessor.of(deep), true),
+                    // setRGB su un'immagine a grigi ricalcola tutti i canali: solo lettura
+                    new Case("grigi", ChannelAccessor.of(gray), false),
+                    new Case("copia di INT_RGB", intCopy, true),
+                    new Case("copia di RGB a 8 bit", rgbCopy, true)
+            ));
+            for (BufferedImage img : List.of(intRgb, abgr, deep, gray, indexed)) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(img, "PNG", png);
+                PngDecoder decoder = PngDecoder.open(ByteBuffer.wrap(png.toByteArray()));
+                cases.add(new Case("PNG " + img.getColorModel().getClass().getSimpleName() + "/"
+                        + img.getColorModel().getComponentSize(0), decoder.channels(), false));
+            }
+            return cases;
+        }
+
+        private static BufferedImage random(BufferedImage img) {
+            Random random = new Random(img.getType() * 31L + img.getRaster().getSampleModel().getNumBands());
+            WritableRaster raster = img.getRaster();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    for (int b = 0; b < raster.getNumBands(); b++) {
+                        raster.setSample(x, y, b, random.nextInt(1 << raster.getSampleModel().getSampleSize(b)));
+                    }
+                }
+            }
+            return img;
+        }
+
+        /**
+         * Il bit {@code i} del flusso letto pixel per pixel, con la stessa corrispondenza di readBits
+         */
+        private static int bitAt(ChannelAccessor pixels, long i, int channel, int plane) {
+            return channel == -1
+                    ? pixels.bit((int) (i / 3), (int) (i % 3), plane)
+                    : pixels.bit((int) i, channel, plane);
+        }
+
+        @Test
+        @DisplayName("Test la lettura in blocco coincide con quella pixel per pixel")
+        void testBulkRead() throws IOException {
+            for (Case c : cases()) {
+                ChannelAccessor pixels = c.pixels();
+                for (int channel = -1; channel < 3; channel++) {
+                    long total = (long) WIDTH * HEIGHT * (channel == -1 ? 3 : 1);
+                    for (int plane : new int[]{0, 5, pixels.sampleBits() - 1}) {
+                        for (long from : new long[]{0, 1, 2, 3 * WIDTH - 1, 3 * WIDTH + 1, 1000}) {
+                            for (long length : new long[]{1, 23, 200, total - from}) {
+                                if (length <= 0 || from + length > total) {
+                                    continue;
+                                }
+                                BitCursor expected = BitCursor.allocate((int) length);
+                                for (long i = 0; i < length; i++) {
+                                    expected.put(bitAt(pixels, from + i, channel, plane));
+                                }
+                                BitCursor actual = BitCursor.allocate((int) length);
+                                pixels.readBits(from, channel, plane, actual);
+
+                                assertArrayEquals(expected.bytes(0, (int) length), actual.bytes(0, (int) length),
+                                        c.name() + " channel=" + channel + " plane=" + plane + " from=" + from
+                                                + " length=" + length);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Test la scrittura in blocco tocca solo i bit del flusso")
+        void testBulkWrite() throws IOException {
+            Random random = new Random(7);
+            for (Case c : cases()) {
+                if (!c.writable()) {
+                    continue;
+                }
+                ChannelAccessor pixels = c.pixels();
+                for (int channel : new int[]{-1, 0, 2}) {
+                    long total = (long) WIDTH * HEIGHT * (channel == -1 ? 3 : 1);
+                    for (long from : new long[]{0, 3, 3L * WIDTH - 3, 3L * WIDTH + 12}) {
+                        for (long length : new long[]{5, 300, total - from}) {
+                            if (from + length > total) {
+                                continue;
+                            }
+                            int plane = random.nextInt(pixels.sampleBits());
+                            byte[] data = new byte[(int) (length + 7) / 8];
+                            random.nextBytes(data);
+                            int[] expected = samples(pixels);
+                            BitCursor bits = BitCursor.over(data);
+                            for (long i = 0; i < length; i++) {
+                                int pixel = (int) (channel == -1 ? (from + i) / 3 : from + i);
+                                int ch = channel == -1 ? (int) ((from + i) % 3) : channel;
+                                int idx = 3 * pixel + ch;
+                                expected[idx] = (expected[idx] & ~(1 << plane)) | (bits.next() << plane);
+                            }
+
+                            BitCursor in = BitCursor.over(data).window(0, (int) length);
+                            pixels.writeBits(from, channel, plane, in);
+
+                            assertArrayEquals(expected, samples(pixels),
+                                    c.name() + " channel=" + channel + " plane=" + plane + " from=" + from
+                                            + " length=" + length);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Tutti i piani di bit di R, G e B di ogni pixel, ricostruiti dai singoli bit
+         */
+        private static int[] samples(ChannelAccessor pixels) {
+            int[] samples = new int[3 * WIDTH * HEIGHT];
+            for (int p = 0; p < WIDTH * HEIGHT; p++) {
+                for (int ch = 0; ch < 3; ch++) {
+                    for (int plane = 0; plane < pixels.sampleBits(); plane++) {
+                        samples[3 * p + ch] |= pixels.bit(p, ch, plane) << plane;
+                    }
+                }
+            }
+            return samples;
+        }
     }
 
     // ==================== TEST CHE DIMOSTRANO PROBLEMI ====================
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Incorporamento riga per riga: decodifica una riga del PNG di partenza, ne modifica i bit che cadono in quella
+ * riga e la passa all'encoder. Le righe oltre il payload passano così come sono.
+ * <p>
+ * In memoria restano solo poche righe, qualunque sia la dimensione dell'immagine. Il risultato è lo stesso di
+ * {@code openImage} seguito da {@code embBits}: RGB e RGBA mantengono i campioni nativi, grigi e palette
+ * diventano RGB a 8 bit.
+ */
+final class StreamingEmbed implements PngEncoder.RowSource {
+    private final PngDecoder decoder;
+    private final BitCursor bits;
+    private final int plane;
+    private final int channel;
+    private final int width;
+    private final int samplesPerPixel;
+    private final int bitDepth;
+    private final byte[] raw;
+
+    /**
+     * @param decoder decoder appena aperto, da cui leggere le righe
+     * @param payload header e dati da incorporare
+     * @param plane   piano di bit (0 = LSB)
+     * @param channel canale (-1 = tutti)
+     */
+    StreamingEmbed(PngDecoder decoder, byte[] payload, int plane, int channel) {
+        this.decoder = decoder;
+        this.bits = BitCursor.over(payload);
+        this.plane = plane;
+        this.channel = channel;
+        this.width = decoder.width();
+        this.samplesPerPixel = decoder.colorType() == PngDecoder.COLOR_RGBA ? 4 : 3;
+        this.bitDepth = decoder.bitDepth();
+        // Grigi e palette hanno un campione per pixel, da espandere in RGB
+        this.raw = decoder.isRgb() ? null : new byte[width];
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return decoder.height();
+    }
+
+    @Override
+    public int bitDepth() {
+        return bitDepth;
+    }
+
+    @Override
+    public int colorType() {
+        return samplesPerPixel == 4 ? PngDecoder.COLOR_RGBA : PngDecoder.COLOR_RGB;
+    }
+
+    @Override
+    public void row(int y, byte[] out) {
+        try {
+            if (raw == null) {
+                decoder.readRow(out, 0);
+            } else {
+                decoder.readRow(raw, 0);
+                for (int x = 0; x < width; x++) {
+                    int rgb = decoder.rgb(raw[x]);
+                    out[3 * x] = (byte) (rgb >>> 16);
+                    out[3 * x + 1] = (byte) (rgb >>> 8);
+                    out[3 * x + 2] = (byte) rgb;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // I bit arrivano in ordine: quelli di questa riga sono i prossimi del cursore
+        int channels = channel == -1 ? 3 : 1;
+        long rowEnd = (long) (y + 1) * width * channels;
+        while (bits.hasNext() && bits.position() < rowEnd) {
+            int k = bits.position();
+            int x = k / channels - y * width;
+            int c = channel == -1 ? k % 3 : channel;
+            int sample = x * samplesPerPixel + c;
+            // A 16 bit i campioni sono big-endian: i piani 0-7 stanno nel secondo byte
+            int idx = bitDepth == 16 ? 2 * sample + (plane < 8 ? 1 : 0) : sample;
+            int shift = plane & 7;
+            out[idx] = (byte) ((out[idx] & ~(1 << shift)) | (bits.next() << shift));
+        }
+    }
+}
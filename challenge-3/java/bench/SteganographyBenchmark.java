@@ -0,0 +1,183 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark JMH di procMeta (embed, extract, verify, update) e batchProc.
+ * <p>
+ * JMH non accetta benchmark nel package di default, dove vive la libreria: per questo la classe sta nel
+ * package {@code bench} e raggiunge l'API pubblica con dei {@link MethodHandle}, risolti una volta sola nel setup.
+ * Vedi il README per compilare ed eseguire (con {@code -prof gc} per il tasso di allocazione).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SteganographyBenchmark {
+
+    /**
+     * Lato dell'immagine quadrata, da 256² a 8K²
+     */
+    @Param({"256", "1024", "4096", "8192"})
+    public int imageSize;
+
+    /**
+     * Lunghezza in caratteri del valore incorporato
+     */
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    /**
+     * -1 = tutti i canali, 0 = solo rosso
+     */
+    @Param({"-1", "0"})
+    public int channel;
+
+    @Param({"1", "2"})
+    public int bitPlane;
+
+    private static final int BATCH_IMAGES = 4;
+
+    private MethodHandle procMeta;
+    private MethodHandle batchProc;
+    private Object procConfig;
+    private Object batchConfig;
+
+    private Path dir;
+    private Path source;
+    private Path embedded;
+    private Path output;
+    private Path batchOut;
+    private List<Path> batch;
+    private Map<String, Object> embedOps;
+    private Map<String, Object> extractOps;
+    private Map<String, Object> verifyOps;
+    private Map<String, Object> updateOps;
+    private Map<String, Object> batchOps;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Class<?> steganography = Class.forName("Steganography");
+        Class<?> procConfigClass = Class.forName("Steganography$ProcMetaConfig");
+        Class<?> batchConfigClass = Class.forName("Steganography$BatchProcConfig");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        procMeta = lookup.findStatic(steganography, "procMeta",
+                MethodType.methodType(Object.class, Path.class, Map.class, procConfigClass));
+        batchProc = lookup.findStatic(steganography, "batchProc",
+                MethodType.methodType(Map.class, List.class, Map.class, Path.class, batchConfigClass));
+
+        procConfig = procConfigClass.getConstructor().newInstance();
+        procConfigClass.getField("bp").set(procConfig, bitPlane);
+        batchConfig = batchConfigClass.getConstructor().newInstance();
+        batchConfigClass.getField("bitPlane").set(batchConfig, bitPlane);
+        batchConfigClass.getField("channelIdx").set(batchConfig, channel);
+
+        dir = Files.createTempDirectory("stego-bench");
+        source = dir.resolve("source.png");
+        embedded = dir.resolve("embedded.png");
+        output = dir.resolve("output.png");
+        batchOut = dir.resolve("batch");
+        writeNoise(source, imageSize);
+
+        Map<String, Object> data = Map.of("payload", "x".repeat(payloadSize));
+        embedOps = Map.of("embed", true, "data", data, "ch", channel, "out", output);
+        extractOps = Map.of("extract", true, "ch", channel);
+        verifyOps = Map.of("verify", true, "ch", channel);
+        updateOps = Map.of("update", Map.of("updated", true), "ch", channel, "out", output);
+        batchOps = Map.of("embed", true, "data", data);
+
+        Object result = procMeta.invoke(source, Map.of("embed", true, "data", data, "ch", channel, "out", embedded),
+                procConfig);
+        if (!Boolean.TRUE.equals(result)) {
+            throw new IllegalStateException("Setup embed failed: " + result);
+        }
+
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_IMAGES; i++) {
+            Path copy = dir.resolve("batch_" + i + ".png");
+            Files.copy(source, copy);
+            batch.add(copy);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object embed() throws Throwable {
+        return procMeta.invoke(source, embedOps, procConfig);
+    }
+
+    @Benchmark
+    public Object extract() throws Throwable {
+        return procMeta.invoke(embedded, extractOps, procConfig);
+    }
+
+    @Benchmark
+    public Object verify() throws Throwable {
+        return procMeta.invoke(embedded, verifyOps, procConfig);
+    }
+
+    @Benchmark
+    public Object update() throws Throwable {
+        return procMeta.invoke(embedded, updateOps, procConfig);
+    }
+
+    /**
+     * Embed su {@value #BATCH_IMAGES} immagini: il punteggio è in batch al secondo
+     */
+    @Benchmark
+    public Object batchEmbed() throws Throwable {
+        return batchProc.invoke(batch, batchOps, batchOut, batchConfig);
+    }
+
+    /**
+     * Rumore casuale: comprime male come una foto, a differenza di un'immagine a tinta unita
+     */
+    private static void writeNoise(Path path, int size) throws IOException {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ImageIO.write(img, "PNG", path.toFile());
+    }
+}
@@ -0,0 +1,147 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Nuclei SIMD (Vector API) per leggere e scrivere un piano di bit su campioni contigui: ogni vettore diventa una
+ * maschera di bit in un'istruzione sola, invece di un campione alla volta.
+ * <p>
+ * La classe usa il modulo incubator {@code jdk.incubator.vector} e si compila a parte (vedi il README): la
+ * libreria la carica per nome con {@link BulkBits#vector()}. Ogni metodo copre l'intero intervallo, con un ciclo
+ * scalare per i campioni oltre l'ultimo vettore pieno.
+ */
+final class VectorBits implements BulkBits {
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * I bit di un byte distanziati di tre: il bit i finisce al bit 3i
+     */
+    private static final int[] SPREAD3 = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            int spread = 0;
+            for (int i = 0; i < 8; i++) {
+                spread |= ((v >>> i) & 1) << (3 * i);
+            }
+            SPREAD3[v] = spread;
+        }
+    }
+
+    /**
+     * Il bit {@code plane} di {@code count} byte consecutivi da {@code from}, un bit per byte
+     */
+    @Override
+    public void readBytes(byte[] a, int from, int count, int plane, BitCursor out) {
+        int lanes = BYTES.length();
+        int end = from + count;
+        int i = from;
+        byte mask = (byte) (1 << plane);
+        for (; i + lanes <= end; i += lanes) {
+            long bits = ByteVector.fromArray(BYTES, a, i).and(mask).compare(VectorOperators.NE, 0).toLong();
+            put(out, bits, lanes);
+        }
+        for (; i < end; i++) {
+            out.put((a[i] >>> plane) & 1);
+        }
+    }
+
+    /**
+     * Il bit {@code shift} di {@code count} int consecutivi da {@code from}, un bit per int
+     */
+    @Override
+    public void readInts(int[] a, int from, int count, int shift, BitCursor out) {
+        int lanes = INTS.length();
+        int end = from + count;
+        int i = from;
+        int mask = 1 << shift;
+        for (; i + lanes <= end; i += lanes) {
+            long bits = IntVector.fromArray(INTS, a, i).and(mask).compare(VectorOperators.NE, 0).toLong();
+            put(out, bits, lanes);
+        }
+        for (; i < end; i++) {
+            out.put((a[i] >>> shift) & 1);
+        }
+    }
+
+    /**
+     * I bit {@code plane} di rosso, verde e blu di {@code count} pixel {@code 0x??RRGGBB} consecutivi: una
+     * maschera per canale, poi intrecciate otto pixel alla volta
+     */
+    @Override
+    public void readPackedRgb(int[] a, int from, int count, int plane, BitCursor out) {
+        int lanes = INTS.length();
+        int end = from + count;
+        int i = from;
+        int chunk = Math.min(lanes, 8);
+        for (; i + lanes <= end; i += lanes) {
+            IntVector v = IntVector.fromArray(INTS, a, i);
+            long r = v.and(1 << (16 + plane)).compare(VectorOperators.NE, 0).toLong();
+            long g = v.and(1 << (8 + plane)).compare(VectorOperators.NE, 0).toLong();
+            long b = v.and(1 << plane).compare(VectorOperators.NE, 0).toLong();
+            for (int k = 0; k < lanes; k += chunk) {
+                int group = SPREAD3[reverse(r >>> k, chunk)] << 2
+                        | SPREAD3[reverse(g >>> k, chunk)] << 1
+                        | SPREAD3[reverse(b >>> k, chunk)];
+                out.put(group, 3 * chunk);
+            }
+        }
+        for (; i < end; i++) {
+            int lanes3 = (a[i] >>> plane) & 0x010101;
+            out.put((lanes3 >>> 14 | lanes3 >>> 7 | lanes3) & 7, 3);
+        }
+    }
+
+    /**
+     * Scrive i bit di {@code in} sul bit {@code plane} di {@code count} int consecutivi da {@code from}, un bit
+     * per int
+     */
+    @Override
+    public void writeInts(int[] a, int from, int count, int plane, BitCursor in) {
+        int lanes = INTS.length();
+        int end = from + count;
+        int i = from;
+        int mask = 1 << plane;
+        for (; i + lanes <= end; i += lanes) {
+            VectorMask<Integer> ones = VectorMask.fromLong(INTS, take(in, lanes));
+            IntVector cleared = IntVector.fromArray(INTS, a, i).and(~mask);
+            cleared.blend(cleared.or(mask), ones).intoArray(a, i);
+        }
+        for (; i < end; i++) {
+            a[i] = (a[i] & ~mask) | (in.next() << plane);
+        }
+    }
+
+    /**
+     * Accoda i primi {@code n} bit di una maschera di corsia: la corsia 0 è il bit meno significativo, ma nel
+     * flusso viene per prima
+     */
+    private static void put(BitCursor out, long bits, int n) {
+        for (int k = 0; k < n; k += 8) {
+            int m = Math.min(8, n - k);
+            out.put(reverse(bits >>> k, m), m);
+        }
+    }
+
+    /**
+     * I prossimi {@code n} bit di {@code in} come maschera di corsia (il primo bit nella corsia 0)
+     */
+    private static long take(BitCursor in, int n) {
+        long bits = 0;
+        for (int k = 0; k < n; k += 8) {
+            int m = Math.min(8, n - k);
+            bits |= (long) reverse(in.next(m), m) << k;
+        }
+        return bits;
+    }
+
+    /**
+     * I {@code n} bit bassi di {@code bits} in ordine inverso
+     */
+    private static int reverse(long bits, int n) {
+        return Integer.reverse((int) bits) >>> (32 - n);
+    }
+}